@@ -0,0 +1,103 @@
+package at.kienmeier.plugins.creational.stepbuilder;
+
+import com.intellij.codeInsight.hint.HintManager;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.command.CommandProcessor;
+import com.intellij.openapi.command.UndoConfirmationPolicy;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
+import com.intellij.psi.*;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Generates the Step Builder for a single class: the analysis runs in the background, only the PSI modifications are
+ * done in a write action. Holds the state of exactly one invocation, so a new task has to be created for every run.
+ */
+class GenerateStepBuilderTask extends Task.Backgroundable {
+    private final SmartPsiElementPointer<PsiFile> filePointer;
+    private final SmartPsiElementPointer<PsiClass> classPointer;
+    private final Editor editor;
+    private final StepBuilderGenerator generator;
+    private StepBuilderPlan plan;
+    private boolean empty;
+
+    GenerateStepBuilderTask(Project project, PsiFile psiFile, PsiClass psiClass, Editor editor) {
+        super(project, "Generating Step Builder", true);
+        SmartPointerManager pointerManager = SmartPointerManager.getInstance(project);
+        this.filePointer = pointerManager.createSmartPsiElementPointer(psiFile);
+        this.classPointer = pointerManager.createSmartPsiElementPointer(psiClass);
+        this.editor = editor;
+        this.generator = new StepBuilderGenerator(project);
+    }
+
+    @Override
+    public void run(@NotNull ProgressIndicator indicator) {
+        indicator.setIndeterminate(true);
+        final Project project = getProject();
+        // the read action may be restarted, so the result is only stored once it has succeeded
+        final boolean[] emptyClass = {false};
+        plan = NonBlockingReadAction.compute(new Computable<StepBuilderPlan>() {
+            @Override
+            public StepBuilderPlan compute() {
+                emptyClass[0] = false;
+                PsiFile theFile = filePointer.getElement();
+                PsiClass theClass = classPointer.getElement();
+                if (null == theFile || null == theClass || DumbService.isDumb(project)) {
+                    return null;
+                }
+                StepBuilderModel model = generator.classify(theClass);
+                if (model.isEmpty()) {
+                    emptyClass[0] = true;
+                    return null;
+                }
+                return generator.plan(theFile, theClass, model);
+            }
+        }, indicator);
+        empty = emptyClass[0];
+    }
+
+    @Override
+    public void onSuccess() {
+        if (null != plan) {
+            // typing during the planning leaves documents uncommitted, which the plan's modification stamp doesn't see
+            // and which must not be modified through the PSI
+            PsiDocumentManager.getInstance(getProject()).commitAllDocuments();
+        }
+        if (empty && !editor.isDisposed()) {
+            // nothing to generate - the class seems to be empty
+            HintManager.getInstance().showErrorHint(editor, "No fields have been found to generate a Step Builder for");
+        } else if (null != plan && plan.isUpToDate() && !plan.hasChanges()) {
+            // a regeneration of an unchanged class doesn't even start a command
+            if (!editor.isDisposed()) {
+                HintManager.getInstance().showInformationHint(editor, "The Step Builder is up to date");
+            }
+        } else if (null != plan) {
+            applyPlan();
+        }
+    }
+
+    private void applyPlan() {
+        final Project project = getProject();
+        ApplicationManager.getApplication().runWriteAction(new Runnable() {
+            @Override
+            public void run() {
+                final CommandProcessor commandProcessor = CommandProcessor.getInstance();
+                commandProcessor.executeCommand(project, new Runnable() {
+                    @Override
+                    public void run() {
+                        PsiFile psiFile = plan.getFile();
+                        if (null == psiFile) {
+                            return;
+                        }
+                        commandProcessor.addAffectedFiles(project, psiFile.getVirtualFile());
+                        generator.apply(plan);
+                    }
+                }, "Generate Step Builder", null, UndoConfirmationPolicy.REQUEST_CONFIRMATION);
+            }
+        });
+    }
+}
@@ -0,0 +1,110 @@
+package at.kienmeier.plugins.creational.stepbuilder;
+
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.module.ModuleUtilCore;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.roots.impl.EffectiveLanguageLevelUtil;
+import com.intellij.openapi.util.UserDataHolder;
+import com.intellij.pom.java.LanguageLevel;
+import com.intellij.psi.*;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+
+/**
+ * Resolves the {@code @Generated} annotation to put on generated code, once per module. Up to Java 8 it is
+ * {@code javax.annotation.Generated}, from Java 9 on {@code javax.annotation.processing.Generated}; whichever is
+ * preferred by the module's language level and available on its classpath is used. The result is cached until the
+ * project roots or SDKs change.
+ */
+public class GeneratedAnnotationService {
+    public static final String JAVAX_ANNOTATION_GENERATED = "javax.annotation.Generated";
+    public static final String JAVAX_ANNOTATION_PROCESSING_GENERATED = "javax.annotation.processing.Generated";
+    private static final GeneratedAnnotation NONE = new GeneratedAnnotation(null, null);
+    private final Project project;
+
+    public GeneratedAnnotationService(Project project) {
+        this.project = project;
+    }
+
+    public static GeneratedAnnotationService getInstance(Project project) {
+        return ServiceManager.getService(project, GeneratedAnnotationService.class);
+    }
+
+    /**
+     * Has to be called inside a read action.
+     *
+     * @param context an element of the module the annotation will be used in
+     * @return the annotation, or null if neither annotation class is available
+     */
+    public GeneratedAnnotation getGeneratedAnnotation(PsiElement context) {
+        final Module module = ModuleUtilCore.findModuleForPsiElement(context);
+        // without a module (e.g. for non-physical files) the whole project is used
+        UserDataHolder cacheHolder = null != module ? module : project;
+        GeneratedAnnotation generatedAnnotation = CachedValuesManager.getManager(project).getCachedValue(cacheHolder,
+                new CachedValueProvider<GeneratedAnnotation>() {
+                    @Override
+                    public Result<GeneratedAnnotation> compute() {
+                        return Result.create(resolve(module), ProjectRootManager.getInstance(project));
+                    }
+                });
+        return generatedAnnotation.isValid() ? generatedAnnotation : null;
+    }
+
+    private GeneratedAnnotation resolve(Module module) {
+        GlobalSearchScope scope;
+        boolean java9;
+        if (null != module) {
+            scope = GlobalSearchScope.moduleWithDependenciesAndLibrariesScope(module);
+            java9 = EffectiveLanguageLevelUtil.getEffectiveLanguageLevel(module).isAtLeast(LanguageLevel.JDK_1_9);
+        } else {
+            scope = GlobalSearchScope.allScope(project);
+            java9 = false;
+        }
+        String preferred = java9 ? JAVAX_ANNOTATION_PROCESSING_GENERATED : JAVAX_ANNOTATION_GENERATED;
+        String fallback = java9 ? JAVAX_ANNOTATION_GENERATED : JAVAX_ANNOTATION_PROCESSING_GENERATED;
+
+        JavaPsiFacade javaPsiFacade = JavaPsiFacade.getInstance(project);
+        PsiClass annotationClass = javaPsiFacade.findClass(preferred, scope);
+        if (null == annotationClass) {
+            annotationClass = javaPsiFacade.findClass(fallback, scope);
+        }
+        if (null == annotationClass) {
+            return NONE;
+        }
+        PsiAnnotation annotation = javaPsiFacade.getElementFactory().createAnnotationFromText(
+                String.format("@%s(value = \"%s\")", annotationClass.getName(), StepBuilderAction.PLUGIN_NAME), null);
+        return new GeneratedAnnotation(annotationClass, annotation);
+    }
+
+    /**
+     * A resolved {@code @Generated} annotation class and the annotation to put on generated code, referring to the
+     * class by its simple name.
+     */
+    public static final class GeneratedAnnotation {
+        private final PsiClass annotationClass;
+        private final PsiAnnotation annotation;
+
+        GeneratedAnnotation(PsiClass annotationClass, PsiAnnotation annotation) {
+            this.annotationClass = annotationClass;
+            this.annotation = annotation;
+        }
+
+        boolean isValid() {
+            return null != annotationClass && annotationClass.isValid();
+        }
+
+        /**
+         * @return the annotation class, which has to be imported wherever the annotation is used
+         */
+        public PsiClass getAnnotationClass() {
+            return annotationClass;
+        }
+
+        public PsiAnnotation getAnnotation() {
+            return annotation;
+        }
+    }
+}
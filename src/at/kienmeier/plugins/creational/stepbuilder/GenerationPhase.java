@@ -0,0 +1,32 @@
+package at.kienmeier.plugins.creational.stepbuilder;
+
+/**
+ * The phases of a Step Builder generation, in the order they are executed.
+ */
+public enum GenerationPhase {
+    CLASSIFICATION("classification"),
+    CONSTRUCTOR("constructor"),
+    GETTERS("getters"),
+    INTERFACES("interfaces"),
+    BUILDER("builder"),
+    DIFF("diff"),
+    // the following phases run in the write action
+    REPLAN("replan"),
+    UPDATE_CONSTRUCTORS("update-constructors"),
+    INSERT("insert"),
+    IMPORT("import"),
+    REFORMAT("reformat");
+
+    private final String id;
+
+    GenerationPhase(String id) {
+        this.id = id;
+    }
+
+    /**
+     * @return the stable identifier used in reports
+     */
+    public String getId() {
+        return id;
+    }
+}
@@ -0,0 +1,37 @@
+package at.kienmeier.plugins.creational.stepbuilder;
+
+import com.intellij.concurrency.SensitiveProgressWrapper;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.Ref;
+
+/**
+ * Runs computations in read actions that give way to write actions: whenever a write action is pending, the read
+ * action is cancelled and restarted after the write action has finished. Must not be called on the EDT.
+ */
+final class NonBlockingReadAction {
+
+    private NonBlockingReadAction() {
+    }
+
+    /**
+     * @throws com.intellij.openapi.progress.ProcessCanceledException if the indicator has been cancelled
+     */
+    static <T> T compute(final Computable<T> computable, ProgressIndicator indicator) {
+        final Ref<T> result = Ref.create();
+        Runnable readAction = new Runnable() {
+            @Override
+            public void run() {
+                result.set(computable.compute());
+            }
+        };
+        // a pending write action cancels the indicator it is given, so every attempt gets its own one which only
+        // follows the task's indicator; otherwise the first write action would cancel the whole task
+        while (!ProgressIndicatorUtils.runInReadActionWithWriteActionPriority(readAction, new SensitiveProgressWrapper(indicator))) {
+            indicator.checkCanceled();
+            ProgressIndicatorUtils.yieldToPendingWriteActions();
+        }
+        return result.get();
+    }
+}
@@ -0,0 +1,19 @@
+package at.kienmeier.plugins.creational.stepbuilder;
+
+/**
+ * Gets notified about the start and the end of every {@link GenerationPhase} of a generation. A phase starts and
+ * finishes on the same thread, but the phases of one generation may run on different threads.
+ */
+public interface PhaseRecorder {
+    void phaseStarted(GenerationPhase phase);
+
+    void phaseFinished(GenerationPhase phase);
+
+    /**
+     * Called after the modifications have been applied to a class.
+     *
+     * @param classLength           the length of the class' text after the generation
+     * @param generatedElementCount the number of inserted fields, methods and classes, including nested ones
+     */
+    void generationFinished(StepBuilderModel model, int classLength, int generatedElementCount);
+}
@@ -0,0 +1,150 @@
+package at.kienmeier.plugins.creational.stepbuilder;
+
+import at.kienmeier.plugins.creational.stepbuilder.StepBuilderModel.Field;
+import com.intellij.codeInspection.*;
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.*;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.psi.util.PsiModificationTracker;
+import com.intellij.psi.util.PsiTreeUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reports classes whose generated Step Builder doesn't match their fields anymore. Runs on every change, so classes
+ * without a generated Builder are skipped right away and the result is cached per class until the Java structure
+ * changes. The check only compares names and types of the generated code with the cached {@link StepBuilderModel}.
+ */
+public class StaleStepBuilderInspection extends BaseJavaLocalInspectionTool {
+    private static final String BUILDER = "Builder";
+
+    @Override
+    public ProblemDescriptor[] checkClass(@NotNull PsiClass aClass, @NotNull InspectionManager manager, boolean isOnTheFly) {
+        PsiElement nameIdentifier = aClass.getNameIdentifier();
+        if (null == nameIdentifier || !StepBuilderGenerator.hasGeneratedBuilder(aClass) || !isStale(aClass)) {
+            return null;
+        }
+        return new ProblemDescriptor[]{manager.createProblemDescriptor(nameIdentifier, "Generated Step Builder is out of date",
+                new RegenerateStepBuilderFix(), ProblemHighlightType.GENERIC_ERROR_OR_WARNING, isOnTheFly)};
+    }
+
+    private static boolean isStale(final PsiClass psiClass) {
+        return CachedValuesManager.getCachedValue(psiClass, new CachedValueProvider<Boolean>() {
+            @Override
+            public Result<Boolean> compute() {
+                PsiClass builder = psiClass.findInnerClassByName(BUILDER, false);
+                boolean stale = null == builder || !matches(psiClass, builder, StepBuilderModel.getInstance(psiClass));
+                return Result.create(stale, PsiModificationTracker.JAVA_STRUCTURE_MODIFICATION_COUNT);
+            }
+        });
+    }
+
+    private static boolean matches(PsiClass psiClass, PsiClass builder, StepBuilderModel model) {
+        // generated step interfaces, in the compact mode only the generic one
+        Map<String, PsiClass> stepInterfaces = new HashMap<String, PsiClass>();
+        for (PsiClass innerClass : psiClass.getInnerClasses()) {
+            String name = innerClass.getName();
+            if (innerClass.isInterface() && !StepBuilderModel.FINAL_STEP.equals(name) && StepBuilderGenerator.isGenerated(innerClass)) {
+                stepInterfaces.put(name, innerClass);
+            }
+        }
+        boolean compact = stepInterfaces.containsKey(StepBuilderModel.COMPACT_STEP);
+
+        // the Builder holds all mandatory values, the optional ones only if it isn't a direct Builder
+        PsiField[] builderFields = builder.getFields();
+        Map<String, String> builderFieldTypes = new HashMap<String, String>(builderFields.length);
+        for (PsiField builderField : builderFields) {
+            builderFieldTypes.put(builderField.getName(), builderField.getType().getCanonicalText());
+        }
+        if (!containsFields(builderFieldTypes, model.getMandatoryFields())) {
+            return false;
+        }
+        // FinalStep has build() and one method per optional field
+        PsiClass finalStep = psiClass.findInnerClassByName(StepBuilderModel.FINAL_STEP, false);
+        if (null == finalStep || !hasOptionalFieldMethods(finalStep, model.getOptionalFields())) {
+            return false;
+        }
+
+        List<Field> mandatoryFields = model.getMandatoryFields();
+        if (compact) {
+            // newInstance() returns the whole chain of steps
+            return stepInterfaces.size() == 1 && !mandatoryFields.isEmpty() && returnsCompactChain(psiClass, model);
+        }
+        // otherwise there is one generated step interface per mandatory field, each leading to the next step
+        if (stepInterfaces.size() != mandatoryFields.size()) {
+            return false;
+        }
+        for (int i = 0; i < mandatoryFields.size(); i++) {
+            PsiClass stepInterface = stepInterfaces.get(mandatoryFields.get(i).getStepInterfaceName());
+            if (null == stepInterface || !leadsTo(stepInterface, mandatoryFields.get(i).getName(), model.getNextStepName(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean containsFields(Map<String, String> fieldTypes, List<Field> fields) {
+        for (Field field : fields) {
+            if (!field.getType().equals(fieldTypes.get(field.getName()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasOptionalFieldMethods(PsiClass finalStep, List<Field> optionalFields) {
+        PsiMethod[] methods = finalStep.getMethods();
+        if (methods.length != optionalFields.size() + 1) {
+            return false;
+        }
+        Map<String, String> parameterTypes = new HashMap<String, String>(methods.length);
+        for (PsiMethod method : methods) {
+            PsiParameter[] parameters = method.getParameterList().getParameters();
+            if (parameters.length == 1) {
+                parameterTypes.put(method.getName(), parameters[0].getType().getCanonicalText());
+            }
+        }
+        return parameterTypes.size() == optionalFields.size() && containsFields(parameterTypes, optionalFields);
+    }
+
+    private static boolean returnsCompactChain(PsiClass psiClass, StepBuilderModel model) {
+        for (PsiMethod method : psiClass.findMethodsByName("newInstance", false)) {
+            PsiTypeElement returnTypeElement = method.getReturnTypeElement();
+            if (method.getParameterList().getParametersCount() == 0 && null != returnTypeElement) {
+                return StepBuilderGenerator.equalsIgnoringWhitespace(returnTypeElement.getText(), model.getCompactFirstStepType());
+            }
+        }
+        return false;
+    }
+
+    private static boolean leadsTo(PsiClass stepInterface, String methodName, String nextStepName) {
+        PsiMethod[] methods = stepInterface.findMethodsByName(methodName, false);
+        if (methods.length != 1) {
+            return false;
+        }
+        PsiTypeElement returnTypeElement = methods[0].getReturnTypeElement();
+        return null != returnTypeElement && nextStepName.equals(returnTypeElement.getText());
+    }
+
+    private static class RegenerateStepBuilderFix implements LocalQuickFix {
+        @NotNull
+        @Override
+        public String getFamilyName() {
+            return "Regenerate Step Builder";
+        }
+
+        @Override
+        public void applyFix(@NotNull Project project, @NotNull ProblemDescriptor descriptor) {
+            PsiClass psiClass = PsiTreeUtil.getParentOfType(descriptor.getPsiElement(), PsiClass.class, false);
+            if (null == psiClass || null == psiClass.getContainingFile()) {
+                return;
+            }
+            StepBuilderGenerator generator = new StepBuilderGenerator(project);
+            generator.generate(psiClass.getContainingFile(), psiClass, generator.classify(psiClass));
+        }
+    }
+}
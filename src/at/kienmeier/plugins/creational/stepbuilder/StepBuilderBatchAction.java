@@ -0,0 +1,303 @@
+package at.kienmeier.plugins.creational.stepbuilder;
+
+import com.intellij.concurrency.JobLauncher;
+import com.intellij.ide.highlighter.JavaFileType;
+import com.intellij.notification.Notification;
+import com.intellij.notification.NotificationType;
+import com.intellij.notification.Notifications;
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.actionSystem.DataKeys;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.command.CommandProcessor;
+import com.intellij.openapi.command.UndoConfirmationPolicy;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ContentIterator;
+import com.intellij.openapi.roots.ModuleRootManager;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.*;
+import com.intellij.util.Processor;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates Step Builders for all classes of the selected files, packages or modules. Files are planned concurrently
+ * on pooled threads in non-blocking read actions of a cancellable background task, the PSI edits are applied on the
+ * EDT in small write action chunks.
+ * <p>
+ * Test sources are left out. Classes are skipped if they can't be instantiated (abstract classes, enums), have a
+ * hand-written Builder, inherit instance fields or have constructors which the generation would remove.
+ */
+public class StepBuilderBatchAction extends AnAction {
+    // upper bound for the time a single write action chunk may keep the EDT busy
+    private static final long CHUNK_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    @Override
+    public void update(AnActionEvent e) {
+        Project project = DataKeys.PROJECT.getData(e.getDataContext());
+        Module[] modules = DataKeys.MODULE_CONTEXT_ARRAY.getData(e.getDataContext());
+        VirtualFile[] files = DataKeys.VIRTUAL_FILE_ARRAY.getData(e.getDataContext());
+        boolean hasSelection = (null != modules && modules.length > 0) || (null != files && files.length > 0);
+        e.getPresentation().setEnabled(null != project && hasSelection);
+    }
+
+    public void actionPerformed(AnActionEvent e) {
+        final Project project = DataKeys.PROJECT.getData(e.getDataContext());
+        if (project == null) {
+            return;
+        }
+        final Module[] modules = DataKeys.MODULE_CONTEXT_ARRAY.getData(e.getDataContext());
+        final VirtualFile[] files = DataKeys.VIRTUAL_FILE_ARRAY.getData(e.getDataContext());
+        if (DumbService.isDumb(project)) {
+            DumbService.getInstance(project).showDumbModeNotification("Step Builders can't be generated while indices are being built");
+            return;
+        }
+
+        PsiDocumentManager.getInstance(project).commitAllDocuments();
+
+        ProgressManager.getInstance().run(new Task.Backgroundable(project, "Generating Step Builders", true) {
+            private final long startNanos = System.nanoTime();
+            // the generator is stateless, all planning threads share it
+            private final StepBuilderGenerator generator = new StepBuilderGenerator(project);
+            private final AtomicInteger generated = new AtomicInteger();
+            private final AtomicInteger skipped = new AtomicInteger();
+            // the commands of all chunks share the group, so the whole run is undone in one step
+            private final Object commandGroupId = new Object();
+
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                indicator.setIndeterminate(true);
+                indicator.setText("Collecting classes...");
+                List<VirtualFile> javaFiles = collectJavaFiles(project, modules, files, indicator);
+
+                indicator.setIndeterminate(false);
+                List<StepBuilderPlan> plans = planClasses(project, javaFiles, indicator);
+
+                indicator.setText("Generating Step Builders...");
+                applyPlans(project, plans, indicator);
+            }
+
+            @Override
+            public void onSuccess() {
+                notifyFinished(project, "Step Builders generated", generated.get(), skipped.get(), startNanos);
+            }
+
+            @Override
+            public void onCancel() {
+                notifyFinished(project, "Step Builder generation cancelled", generated.get(), skipped.get(), startNanos);
+            }
+
+            private List<StepBuilderPlan> planClasses(final Project project, final List<VirtualFile> javaFiles, final ProgressIndicator indicator) {
+                // the files are planned concurrently, the slots keep the plans in file order
+                @SuppressWarnings("unchecked")
+                final List<StepBuilderPlan>[] filePlans = new List[javaFiles.size()];
+                final Map<VirtualFile, Integer> fileIndices = new HashMap<VirtualFile, Integer>(javaFiles.size());
+                for (int i = 0; i < javaFiles.size(); i++) {
+                    fileIndices.put(javaFiles.get(i), i);
+                }
+                final AtomicInteger planned = new AtomicInteger();
+                boolean completed = JobLauncher.getInstance().invokeConcurrentlyUnderProgress(javaFiles, indicator, false, new Processor<VirtualFile>() {
+                    @Override
+                    public boolean process(VirtualFile javaFile) {
+                        PlannedFile plannedFile = NonBlockingReadAction.compute(planFile(project, javaFile), indicator);
+                        filePlans[fileIndices.get(javaFile)] = plannedFile.plans;
+                        skipped.addAndGet(plannedFile.skipped);
+                        indicator.setFraction((double) planned.incrementAndGet() / javaFiles.size());
+                        indicator.setText2(javaFile.getPresentableUrl());
+                        return true;
+                    }
+                });
+                if (!completed) {
+                    throw new ProcessCanceledException();
+                }
+                List<StepBuilderPlan> plans = new ArrayList<StepBuilderPlan>();
+                for (List<StepBuilderPlan> plansOfFile : filePlans) {
+                    plans.addAll(plansOfFile);
+                }
+                return plans;
+            }
+
+            /**
+             * The returned computation may be restarted, so it must not touch the task's state.
+             */
+            private Computable<PlannedFile> planFile(final Project project, final VirtualFile javaFile) {
+                return new Computable<PlannedFile>() {
+                    @Override
+                    public PlannedFile compute() {
+                        PlannedFile plannedFile = new PlannedFile();
+                        PsiFile psiFile = PsiManager.getInstance(project).findFile(javaFile);
+                        if (!(psiFile instanceof PsiJavaFile) || DumbService.isDumb(project)) {
+                            return plannedFile;
+                        }
+                        for (PsiClass psiClass : ((PsiJavaFile) psiFile).getClasses()) {
+                            if (!StepBuilderGenerator.isStepBuilderCandidate(psiClass)) {
+                                continue;
+                            }
+                            StepBuilderPlan plan = planClass(generator, psiFile, psiClass);
+                            if (null != plan) {
+                                plannedFile.plans.add(plan);
+                            } else {
+                                plannedFile.skipped++;
+                            }
+                        }
+                        return plannedFile;
+                    }
+                };
+            }
+
+            private void applyPlans(final Project project, final List<StepBuilderPlan> plans, ProgressIndicator indicator) {
+                final int[] next = {0};
+                while (next[0] < plans.size()) {
+                    indicator.checkCanceled();
+                    indicator.setFraction((double) next[0] / plans.size());
+                    ApplicationManager.getApplication().invokeAndWait(new Runnable() {
+                        @Override
+                        public void run() {
+                            applyChunk(project, plans, next);
+                        }
+                    }, ModalityState.defaultModalityState());
+                }
+            }
+
+            private void applyChunk(final Project project, final List<StepBuilderPlan> plans, final int[] next) {
+                // the user keeps editing during the run, uncommitted documents can't be modified through the PSI
+                PsiDocumentManager.getInstance(project).commitAllDocuments();
+                ApplicationManager.getApplication().runWriteAction(new Runnable() {
+                    @Override
+                    public void run() {
+                        CommandProcessor.getInstance().executeCommand(project, new Runnable() {
+                            @Override
+                            public void run() {
+                                long chunkStart = System.nanoTime();
+                                do {
+                                    if (applyPlan(project, generator, plans.get(next[0]))) {
+                                        generated.incrementAndGet();
+                                    } else {
+                                        skipped.incrementAndGet();
+                                    }
+                                    next[0]++;
+                                } while (next[0] < plans.size() && System.nanoTime() - chunkStart < CHUNK_BUDGET_NANOS);
+                            }
+                        }, "Generate Step Builders", commandGroupId, UndoConfirmationPolicy.REQUEST_CONFIRMATION);
+                    }
+                });
+            }
+        });
+    }
+
+    private static List<VirtualFile> collectJavaFiles(final Project project, final Module[] modules, final VirtualFile[] files, ProgressIndicator indicator) {
+        return NonBlockingReadAction.compute(new Computable<List<VirtualFile>>() {
+            @Override
+            public List<VirtualFile> compute() {
+                final Set<VirtualFile> javaFiles = new LinkedHashSet<VirtualFile>();
+                final ProjectFileIndex fileIndex = ProjectRootManager.getInstance(project).getFileIndex();
+                ContentIterator collector = new ContentIterator() {
+                    @Override
+                    public boolean processFile(VirtualFile file) {
+                        // tests don't get builders, they would only lose their constructors
+                        if (!file.isDirectory() && file.getFileType() == JavaFileType.INSTANCE && fileIndex.isInSourceContent(file)
+                                && !fileIndex.isInTestSourceContent(file)) {
+                            javaFiles.add(file);
+                        }
+                        return true;
+                    }
+                };
+                if (null != modules) {
+                    for (Module module : modules) {
+                        ModuleRootManager.getInstance(module).getFileIndex().iterateContent(collector);
+                    }
+                }
+                if (null != files) {
+                    for (VirtualFile file : files) {
+                        if (file.isDirectory()) {
+                            fileIndex.iterateContentUnderDirectory(file, collector);
+                        } else {
+                            collector.processFile(file);
+                        }
+                    }
+                }
+                return new ArrayList<VirtualFile>(javaFiles);
+            }
+        }, indicator);
+    }
+
+    private static void notifyFinished(Project project, String title, int generated, int skipped, long startNanos) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        String content = String.format("%d classes generated, %d skipped in %.1f s (%.1f classes/s)",
+                generated, skipped, seconds, seconds > 0 ? generated / seconds : 0.0);
+        Notifications.Bus.notify(new Notification(StepBuilderAction.PLUGIN_NAME, title, content, NotificationType.INFORMATION), project);
+    }
+
+    /**
+     * Plans a candidate class of a batch run.
+     *
+     * @return null if the class is skipped or its Step Builder is up to date
+     */
+    private static StepBuilderPlan planClass(StepBuilderGenerator generator, PsiFile psiFile, PsiClass psiClass) {
+        if (null != psiClass.findInnerClassByName("Builder", false) && !StepBuilderGenerator.hasGeneratedBuilder(psiClass)) {
+            // don't generate a second Builder into the class, only generated ones are regenerated
+            return null;
+        }
+        for (PsiField psiField : psiClass.getAllFields()) {
+            if (psiField.getContainingClass() != psiClass && StepBuilderModel.isBuilderField(psiField)) {
+                // inherited fields (e.g. of a library class) are mostly private or final to the generated constructor
+                return null;
+            }
+        }
+        StepBuilderModel model = generator.classify(psiClass);
+        if (model.isEmpty()) {
+            return null;
+        }
+        StepBuilderPlan plan = generator.plan(psiFile, psiClass, model);
+        if (!plan.getObsoleteConstructors().isEmpty() && !StepBuilderGenerator.hasGeneratedBuilder(psiClass)) {
+            // a class with hand-written constructors for other purposes (e.g. a service) would lose them, only the
+            // action for a single class may do that
+            return null;
+        }
+        return plan.hasChanges() ? plan : null;
+    }
+
+    /**
+     * A plan which is out of date (e.g. the file has been edited, or another class of the file has been generated) is
+     * planned again under the same rules as in the planning phase, {@link StepBuilderGenerator#apply} would skip them.
+     *
+     * @return false if the class has been removed or is skipped now
+     */
+    private static boolean applyPlan(Project project, StepBuilderGenerator generator, StepBuilderPlan plan) {
+        PsiFile psiFile = plan.getFile();
+        PsiClass psiClass = plan.getPsiClass();
+        if (null == psiFile || null == psiClass) {
+            return false;
+        }
+        if (!plan.isUpToDate()) {
+            plan = StepBuilderGenerator.isStepBuilderCandidate(psiClass) ? planClass(generator, psiFile, psiClass) : null;
+            if (null == plan) {
+                return false;
+            }
+        }
+        CommandProcessor.getInstance().addAffectedFiles(project, psiFile.getVirtualFile());
+        generator.apply(plan);
+        return true;
+    }
+
+    /**
+     * The plans of all classes of one file and the number of classes skipped.
+     */
+    private static class PlannedFile {
+        private final List<StepBuilderPlan> plans = new ArrayList<StepBuilderPlan>();
+        private int skipped;
+    }
+}
@@ -0,0 +1,437 @@
+package at.kienmeier.plugins.creational.stepbuilder;
+
+import com.intellij.ide.highlighter.JavaFileType;
+import com.intellij.ide.plugins.IdeaPluginDescriptor;
+import com.intellij.ide.plugins.PluginManager;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.extensions.PluginId;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.psi.*;
+import com.intellij.util.LocalTimeCounter;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs the generation pipeline against synthetic classes of increasing width and measures wall time, allocated bytes
+ * and PSI modifications per {@link GenerationPhase}. The classes live in non-physical files, so no project content,
+ * SDK or network is needed. Must be called on the EDT.
+ * <p>
+ * Every width is run with one interface per step and in the compact mode. For widths a constructor can take, the
+ * generated class is also compiled in memory and loaded in fresh class loaders, which reports how many generated
+ * classes the JVM actually loads and how long it takes until the first build() has returned. For the same widths the
+ * time per instance of the copying Builder, the direct Builder and a plain constructor call is compared.
+ * <p>
+ * In the default mode every width is also generated by the {@link LegacyStepBuilderGenerator}, which adds every element
+ * on its own, and the speedup of the current generation over it is reported.
+ * <p>
+ * The time per field of the two largest widths (1000 and 2000 by default) is compared for both modes. A generation which
+ * is linear in the number of fields keeps it about the same, a quadratic one doubles it. See {@link #isLinear()}.
+ */
+public class StepBuilderBenchmark {
+    public static final String PLUGIN_ID = "at.kienmeier.plugins.creational.stepbuilder";
+    // 2000 is a stress test for very wide (e.g. schema-derived) classes, where any non-linear phase stands out
+    public static final int[] DEFAULT_WIDTHS = {1, 10, 100, 1000, 2000};
+    public static final int DEFAULT_ITERATIONS = 5;
+    // the generated constructor takes every field, and a method can't have more than 255 parameters
+    private static final int MAX_STARTUP_WIDTH = 100;
+    private static final int CONSTRUCTION_BUILDS = 1000000;
+    // below, the fixed costs of a generation (parsing, imports, reformatting) dominate the time per field
+    private static final int MIN_SCALING_WIDTH = 1000;
+    // linear is about 1.0 between 1000 and 2000 fields and quadratic about 2.0, this leaves room for noise and GC
+    private static final double MAX_PER_FIELD_TIME_RATIO = 1.5;
+    private static final String[] FIELD_TYPES = {"int", "java.lang.String", "long", "java.util.List<java.lang.String>"};
+
+    private final Project project;
+    private final int[] widths;
+    private final int iterations;
+    private boolean linear = true;
+
+    public StepBuilderBenchmark(Project project, int[] widths, int iterations) {
+        this.project = project;
+        this.widths = widths;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Runs the benchmark and returns the results as JSON.
+     */
+    public String run() {
+        List<Measurement> results = new ArrayList<Measurement>();
+        List<String> scaling = new ArrayList<String>();
+        List<String> legacy = new ArrayList<String>();
+        linear = true;
+        for (boolean compact : new boolean[]{false, true}) {
+            Measurement smallest = null;
+            Measurement largest = null;
+            for (int width : widths) {
+                // one warm-up run per width which is not part of the results
+                runOnce(width, new Measurement(width, compact));
+                Measurement measurement = new Measurement(width, compact);
+                for (int i = 0; i < iterations; i++) {
+                    runOnce(width, measurement);
+                }
+                if (width <= MAX_STARTUP_WIDTH && measurement.runs > 0) {
+                    measureStartup(measurement);
+                }
+                results.add(measurement);
+                if (!compact && measurement.runs > 0) {
+                    legacy.add(compareWithLegacy(measurement));
+                }
+                if (width >= MIN_SCALING_WIDTH && (null == smallest || width < smallest.width)) {
+                    smallest = measurement;
+                }
+                if (null == largest || width > largest.width) {
+                    largest = measurement;
+                }
+            }
+            if (null != smallest && largest.width > smallest.width && smallest.runs > 0) {
+                scaling.add(checkScaling(smallest, largest));
+            }
+        }
+        List<String> construction = new ArrayList<String>();
+        for (int width : widths) {
+            if (width <= MAX_STARTUP_WIDTH) {
+                construction.add(measureConstruction(width));
+            }
+        }
+        return toJson(results, scaling, legacy, construction);
+    }
+
+    /**
+     * @return false if the time per field of any mode has grown by more than the tolerated ratio in the last run
+     */
+    public boolean isLinear() {
+        return linear;
+    }
+
+    private String checkScaling(Measurement smallest, Measurement largest) {
+        long smallestNanos = 0;
+        long largestNanos = 0;
+        for (GenerationPhase phase : GenerationPhase.values()) {
+            smallestNanos += smallest.nanos[phase.ordinal()];
+            largestNanos += largest.nanos[phase.ordinal()];
+        }
+        double ratio = perField(largest, largestNanos) / perField(smallest, smallestNanos);
+        boolean modeLinear = ratio <= MAX_PER_FIELD_TIME_RATIO;
+        linear &= modeLinear;
+
+        // the phase which scales worst, for finding the culprit
+        GenerationPhase worstPhase = null;
+        double worstRatio = 0;
+        for (GenerationPhase phase : GenerationPhase.values()) {
+            long nanos = smallest.nanos[phase.ordinal()];
+            if (nanos > 0) {
+                double phaseRatio = perField(largest, largest.nanos[phase.ordinal()]) / perField(smallest, nanos);
+                if (phaseRatio > worstRatio) {
+                    worstPhase = phase;
+                    worstRatio = phaseRatio;
+                }
+            }
+        }
+        return String.format(Locale.ROOT, "{\"mode\": \"%s\", \"fromWidth\": %d, \"toWidth\": %d, \"perFieldTimeRatio\": %.2f, "
+                        + "\"worstPhase\": %s, \"worstPhaseRatio\": %.2f, \"linear\": %b}",
+                smallest.compact ? "compact" : "default", smallest.width, largest.width, ratio,
+                null != worstPhase ? "\"" + worstPhase.getId() + "\"" : "null", worstRatio, modeLinear);
+    }
+
+    private static double perField(Measurement measurement, long totalNanos) {
+        return (double) totalNanos / measurement.runs / measurement.width;
+    }
+
+    private void runOnce(int width, Measurement measurement) {
+        final PsiJavaFile psiFile = createSyntheticFile(width);
+        Disposable disposable = Disposer.newDisposable();
+        try {
+            MeasuringRecorder recorder = new MeasuringRecorder(measurement, psiFile);
+            PsiManager.getInstance(project).addPsiTreeChangeListener(recorder, disposable);
+
+            PsiClass psiClass = psiFile.getClasses()[0];
+            recorder.phaseStarted(GenerationPhase.CLASSIFICATION);
+            // bypass the cache, every run should pay for the classification
+            StepBuilderModel model = StepBuilderModel.create(psiClass);
+            recorder.phaseFinished(GenerationPhase.CLASSIFICATION);
+
+            StepBuilderSettings settings = new StepBuilderSettings();
+            settings.setCompactStepInterfaces(measurement.compact);
+            new StepBuilderGenerator(project, recorder, settings).generate(psiFile, psiClass, model);
+            measurement.generatedTypes = psiClass.getInnerClasses().length;
+            measurement.model = model;
+            measurement.source = psiFile.getText();
+        } finally {
+            Disposer.dispose(disposable);
+        }
+    }
+
+    private void measureStartup(Measurement measurement) {
+        try {
+            StepBuilderStartupBenchmark startup = StepBuilderStartupBenchmark.compile(measurement.source, measurement.model,
+                    measurement.compact);
+            for (int i = 0; i < iterations; i++) {
+                long[] result = startup.buildFirstInstance();
+                measurement.loadedClasses = (int) result[0];
+                measurement.firstBuildNanos += result[1];
+            }
+        } catch (Exception e) {
+            measurement.startupError = String.valueOf(e.getMessage());
+        }
+    }
+
+    private String compareWithLegacy(Measurement current) {
+        // one warm-up run which is not part of the results
+        runLegacyOnce(current.width, new long[2]);
+        long[] totals = new long[2];
+        for (int i = 0; i < iterations; i++) {
+            runLegacyOnce(current.width, totals);
+        }
+        long nanos = 0;
+        long psiModifications = 0;
+        for (GenerationPhase phase : GenerationPhase.values()) {
+            nanos += current.nanos[phase.ordinal()];
+            psiModifications += current.psiModifications[phase.ordinal()];
+        }
+        return String.format(Locale.ROOT, "{\"mandatoryFields\": %d, \"optionalFields\": %d, \"legacyWallTimeMillis\": %.3f, "
+                        + "\"legacyPsiModifications\": %d, \"wallTimeMillis\": %.3f, \"psiModifications\": %d, \"speedup\": %.2f}",
+                current.width, current.width, totals[0] / 1e6 / iterations, totals[1] / iterations,
+                current.average(nanos) / 1e6, current.average(psiModifications), (double) totals[0] / iterations / current.average(nanos));
+    }
+
+    /**
+     * @param totals the nanoseconds and PSI modifications, the ones of this run are added
+     */
+    private void runLegacyOnce(int width, long[] totals) {
+        final PsiJavaFile psiFile = createSyntheticFile(width);
+        Disposable disposable = Disposer.newDisposable();
+        try {
+            MeasuringRecorder recorder = new MeasuringRecorder(new Measurement(width, false), psiFile);
+            PsiManager.getInstance(project).addPsiTreeChangeListener(recorder, disposable);
+
+            PsiClass psiClass = psiFile.getClasses()[0];
+            long start = System.nanoTime();
+            new LegacyStepBuilderGenerator(project).generate(psiFile, psiClass, LegacyStepBuilderGenerator.findMandatoryFields(psiClass),
+                    LegacyStepBuilderGenerator.findOptionalFields(psiClass));
+            totals[0] += System.nanoTime() - start;
+            totals[1] += recorder.modifications;
+        } finally {
+            Disposer.dispose(disposable);
+        }
+    }
+
+    private String measureConstruction(int width) {
+        String prefix = String.format(Locale.ROOT, "{\"mandatoryFields\": %d, \"optionalFields\": %d, ", width, width);
+        try {
+            double[] copying = compileWithConstructionLoops(width, false).measureConstruction(CONSTRUCTION_BUILDS);
+            double[] direct = compileWithConstructionLoops(width, true).measureConstruction(CONSTRUCTION_BUILDS);
+            // the constructor loop is the same in both classes
+            return prefix + String.format(Locale.ROOT, "\"copyingBuilderNanos\": %.1f, \"directBuilderNanos\": %.1f, \"constructorNanos\": %.1f}",
+                    copying[0], direct[0], Math.min(copying[1], direct[1]));
+        } catch (Exception e) {
+            return prefix + "\"error\": \"" + escape(String.valueOf(e.getMessage())) + "\"}";
+        }
+    }
+
+    private StepBuilderStartupBenchmark compileWithConstructionLoops(int width, boolean directBuilder) {
+        PsiJavaFile psiFile = createSyntheticFile(width);
+        PsiClass psiClass = psiFile.getClasses()[0];
+        StepBuilderModel model = StepBuilderModel.create(psiClass);
+        StepBuilderSettings settings = new StepBuilderSettings();
+        settings.setDirectBuilder(directBuilder);
+        // the generation itself isn't part of the results
+        new StepBuilderGenerator(project, new MeasuringRecorder(new Measurement(width, false), psiFile), settings)
+                .generate(psiFile, psiClass, model);
+        return StepBuilderStartupBenchmark.compileWithConstructionLoops(psiFile.getText(), model);
+    }
+
+    private PsiJavaFile createSyntheticFile(int width) {
+        String className = "Synthetic" + width;
+        StringBuilder text = new StringBuilder();
+        text.append("public class ").append(className).append(" {\n");
+        for (int i = 0; i < width; i++) {
+            text.append("    private final ").append(FIELD_TYPES[i % FIELD_TYPES.length]).append(" mandatory").append(i).append(";\n");
+        }
+        for (int i = 0; i < width; i++) {
+            text.append("    private ").append(FIELD_TYPES[i % FIELD_TYPES.length]).append(" optional").append(i).append(";\n");
+        }
+        text.append("}\n");
+        // the event system has to be enabled for PSI modifications to be counted
+        return (PsiJavaFile) PsiFileFactory.getInstance(project).createFileFromText(className + ".java", JavaFileType.INSTANCE,
+                text, LocalTimeCounter.currentTime(), true);
+    }
+
+    private static String toJson(List<Measurement> results, List<String> scaling, List<String> legacy, List<String> construction) {
+        IdeaPluginDescriptor plugin = PluginManager.getPlugin(PluginId.getId(PLUGIN_ID));
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"plugin\": \"").append(PLUGIN_ID).append("\",\n");
+        json.append("  \"version\": \"").append(null != plugin ? plugin.getVersion() : "unknown").append("\",\n");
+        json.append("  \"timestamp\": ").append(System.currentTimeMillis()).append(",\n");
+        json.append("  \"results\": [\n");
+        for (int r = 0; r < results.size(); r++) {
+            Measurement measurement = results.get(r);
+            json.append("    {\n");
+            json.append("      \"mode\": \"").append(measurement.compact ? "compact" : "default").append("\",\n");
+            json.append("      \"mandatoryFields\": ").append(measurement.width).append(",\n");
+            json.append("      \"optionalFields\": ").append(measurement.width).append(",\n");
+            json.append("      \"iterations\": ").append(measurement.runs).append(",\n");
+            json.append("      \"generatedTypes\": ").append(measurement.generatedTypes).append(",\n");
+            json.append("      \"startup\": ").append(startupToJson(measurement)).append(",\n");
+            json.append("      \"phases\": {\n");
+            GenerationPhase[] phases = GenerationPhase.values();
+            for (int p = 0; p < phases.length; p++) {
+                int i = phases[p].ordinal();
+                json.append(String.format(Locale.ROOT, "        \"%s\": {\"wallTimeMillis\": %.3f, \"allocatedBytes\": %d, \"psiModifications\": %d}",
+                        phases[p].getId(), measurement.average(measurement.nanos[i]) / 1e6,
+                        measurement.average(measurement.allocatedBytes[i]), measurement.average(measurement.psiModifications[i])));
+                json.append(p < phases.length - 1 ? ",\n" : "\n");
+            }
+            json.append("      }\n");
+            json.append(r < results.size() - 1 ? "    },\n" : "    }\n");
+        }
+        json.append("  ],\n");
+        json.append("  \"scaling\": [\n");
+        for (int s = 0; s < scaling.size(); s++) {
+            json.append("    ").append(scaling.get(s)).append(s < scaling.size() - 1 ? ",\n" : "\n");
+        }
+        json.append("  ],\n");
+        json.append("  \"legacyComparison\": [\n");
+        for (int l = 0; l < legacy.size(); l++) {
+            json.append("    ").append(legacy.get(l)).append(l < legacy.size() - 1 ? ",\n" : "\n");
+        }
+        json.append("  ],\n");
+        json.append("  \"construction\": [\n");
+        for (int c = 0; c < construction.size(); c++) {
+            json.append("    ").append(construction.get(c)).append(c < construction.size() - 1 ? ",\n" : "\n");
+        }
+        json.append("  ]\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    private static String startupToJson(Measurement measurement) {
+        if (null != measurement.startupError) {
+            return "{\"error\": \"" + escape(measurement.startupError) + "\"}";
+        } else if (measurement.loadedClasses < 0) {
+            return "null";
+        }
+        return String.format(Locale.ROOT, "{\"loadedClasses\": %d, \"firstBuildMillis\": %.3f}", measurement.loadedClasses,
+                measurement.average(measurement.firstBuildNanos) / 1e6);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", " ");
+    }
+
+    /**
+     * Accumulated totals of all runs for one width.
+     */
+    private static class Measurement {
+        private final int width;
+        private final boolean compact;
+        private final long[] nanos = new long[GenerationPhase.values().length];
+        private final long[] allocatedBytes = new long[GenerationPhase.values().length];
+        private final long[] psiModifications = new long[GenerationPhase.values().length];
+        private int runs;
+        private int generatedTypes;
+        private StepBuilderModel model;
+        private String source;
+        private int loadedClasses = -1;
+        private long firstBuildNanos;
+        private String startupError;
+
+        Measurement(int width, boolean compact) {
+            this.width = width;
+            this.compact = compact;
+        }
+
+        long average(long total) {
+            return runs > 0 ? total / runs : 0;
+        }
+    }
+
+    private static class MeasuringRecorder extends PsiTreeChangeAdapter implements PhaseRecorder {
+        private final Measurement measurement;
+        private final PsiFile psiFile;
+        private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        private long modifications;
+        private long startNanos;
+        private long startBytes;
+        private long startModifications;
+
+        MeasuringRecorder(Measurement measurement, PsiFile psiFile) {
+            this.measurement = measurement;
+            this.psiFile = psiFile;
+        }
+
+        @Override
+        public void phaseStarted(GenerationPhase phase) {
+            if (phase == GenerationPhase.CLASSIFICATION) {
+                measurement.runs++;
+            }
+            startModifications = modifications;
+            startBytes = allocatedBytes();
+            startNanos = System.nanoTime();
+        }
+
+        @Override
+        public void phaseFinished(GenerationPhase phase) {
+            long endNanos = System.nanoTime();
+            measurement.nanos[phase.ordinal()] += endNanos - startNanos;
+            measurement.allocatedBytes[phase.ordinal()] += Math.max(0, allocatedBytes() - startBytes);
+            measurement.psiModifications[phase.ordinal()] += modifications - startModifications;
+        }
+
+        private long allocatedBytes() {
+            if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadMXBean;
+                if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+                    return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public void generationFinished(StepBuilderModel model, int classLength, int generatedElementCount) {
+        }
+
+        private void count(PsiTreeChangeEvent event) {
+            if (event.getFile() == psiFile) {
+                modifications++;
+            }
+        }
+
+        @Override
+        public void childAdded(PsiTreeChangeEvent event) {
+            count(event);
+        }
+
+        @Override
+        public void childRemoved(PsiTreeChangeEvent event) {
+            count(event);
+        }
+
+        @Override
+        public void childReplaced(PsiTreeChangeEvent event) {
+            count(event);
+        }
+
+        @Override
+        public void childMoved(PsiTreeChangeEvent event) {
+            count(event);
+        }
+
+        @Override
+        public void childrenChanged(PsiTreeChangeEvent event) {
+            count(event);
+        }
+
+        @Override
+        public void propertyChanged(PsiTreeChangeEvent event) {
+            count(event);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package at.kienmeier.plugins.creational.stepbuilder;
+
+import com.intellij.notification.Notification;
+import com.intellij.notification.NotificationType;
+import com.intellij.notification.Notifications;
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.actionSystem.DataKeys;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.io.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Internal action running the {@link StepBuilderBenchmark} and writing the results to the IDE's log directory.
+ */
+public class StepBuilderBenchmarkAction extends AnAction {
+
+    public void actionPerformed(AnActionEvent e) {
+        final Project project = DataKeys.PROJECT.getData(e.getDataContext());
+        if (project == null) {
+            return;
+        }
+        String json = runBenchmark(new StepBuilderBenchmark(project, StepBuilderBenchmark.DEFAULT_WIDTHS,
+                StepBuilderBenchmark.DEFAULT_ITERATIONS));
+        File report = new File(PathManager.getLogPath(), "step-builder-benchmark-" + System.currentTimeMillis() + ".json");
+        Notification notification;
+        try {
+            FileUtil.writeToFile(report, json);
+            notification = new Notification(StepBuilderAction.PLUGIN_NAME, "Step Builder benchmark finished",
+                    "Results have been written to " + report.getPath(), NotificationType.INFORMATION);
+        } catch (IOException ex) {
+            notification = new Notification(StepBuilderAction.PLUGIN_NAME, "Step Builder benchmark failed",
+                    "Results could not be written to " + report.getPath() + ": " + ex.getMessage(), NotificationType.ERROR);
+        }
+        Notifications.Bus.notify(notification, project);
+    }
+
+    static String runBenchmark(final StepBuilderBenchmark benchmark) {
+        return ApplicationManager.getApplication().runWriteAction(new Computable<String>() {
+            @Override
+            public String compute() {
+                return benchmark.run();
+            }
+        });
+    }
+}
@@ -0,0 +1,58 @@
+package at.kienmeier.plugins.creational.stepbuilder;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ApplicationStarter;
+import com.intellij.openapi.project.ProjectManager;
+import com.intellij.openapi.util.io.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Headless entry point for the {@link StepBuilderBenchmark}, e.g. for comparing releases on a build server:
+ * <pre>idea.sh stepBuilderBenchmark [output.json] [iterations]</pre>
+ * Without an output file the results are printed to stdout. Exits with 2 if the generation time per field grows with
+ * the width of the class.
+ */
+public class StepBuilderBenchmarkStarter implements ApplicationStarter {
+
+    @Override
+    public String getCommandName() {
+        return "stepBuilderBenchmark";
+    }
+
+    @Override
+    public void premain(String[] args) {
+    }
+
+    @Override
+    public void main(String[] args) {
+        final int iterations = args.length > 2 ? Integer.parseInt(args[2]) : StepBuilderBenchmark.DEFAULT_ITERATIONS;
+        final StepBuilderBenchmark benchmark = new StepBuilderBenchmark(ProjectManager.getInstance().getDefaultProject(),
+                StepBuilderBenchmark.DEFAULT_WIDTHS, iterations);
+        final String[] json = new String[1];
+        ApplicationManager.getApplication().invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+                json[0] = StepBuilderBenchmarkAction.runBenchmark(benchmark);
+            }
+        }, ApplicationManager.getApplication().getDefaultModalityState());
+
+        int exitCode = 0;
+        if (args.length > 1) {
+            try {
+                FileUtil.writeToFile(new File(args[1]), json[0]);
+            } catch (IOException e) {
+                System.err.println("Cannot write benchmark results to " + args[1] + ": " + e.getMessage());
+                exitCode = 1;
+            }
+        } else {
+            System.out.println(json[0]);
+        }
+        if (exitCode == 0 && !benchmark.isLinear()) {
+            System.err.println("Step Builder generation doesn't scale linearly with the number of fields, see \"scaling\"");
+            exitCode = 2;
+        }
+        System.exit(exitCode);
+    }
+}
@@ -0,0 +1,90 @@
+package at.kienmeier.plugins.creational.stepbuilder;
+
+import com.intellij.openapi.options.Configurable;
+import com.intellij.openapi.options.ConfigurationException;
+import org.jetbrains.annotations.Nls;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * Settings page for {@link StepBuilderSettings}.
+ */
+public class StepBuilderConfigurable implements Configurable {
+    private JCheckBox reformatWholeClass;
+    private JCheckBox compactStepInterfaces;
+    private JCheckBox directBuilder;
+    private JCheckBox batchFactory;
+    private JCheckBox derivations;
+
+    @Nls
+    @Override
+    public String getDisplayName() {
+        return "Step Builder Generator";
+    }
+
+    @Nullable
+    @Override
+    public String getHelpTopic() {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public JComponent createComponent() {
+        reformatWholeClass = new JCheckBox("Reformat the whole class after generation (slow on large classes)");
+        compactStepInterfaces = new JCheckBox("Use one generic Step interface instead of one interface per mandatory field");
+        directBuilder = new JCheckBox("Let the Builder write optional fields straight into the new instance (no copy in build())");
+        batchFactory = new JCheckBox("Generate newInstances(...) creating many instances from per-field arrays");
+        derivations = new JCheckBox("Generate toBuilder() and withX(...) methods deriving modified copies");
+        JPanel panel = new JPanel(new BorderLayout());
+        JPanel options = new JPanel(new GridLayout(0, 1));
+        options.add(reformatWholeClass);
+        options.add(compactStepInterfaces);
+        options.add(directBuilder);
+        options.add(batchFactory);
+        options.add(derivations);
+        panel.add(options, BorderLayout.NORTH);
+        return panel;
+    }
+
+    @Override
+    public boolean isModified() {
+        StepBuilderSettings settings = StepBuilderSettings.getInstance();
+        return reformatWholeClass.isSelected() != settings.isReformatWholeClass()
+                || compactStepInterfaces.isSelected() != settings.isCompactStepInterfaces()
+                || directBuilder.isSelected() != settings.isDirectBuilder()
+                || batchFactory.isSelected() != settings.isBatchFactory()
+                || derivations.isSelected() != settings.isDerivations();
+    }
+
+    @Override
+    public void apply() throws ConfigurationException {
+        StepBuilderSettings settings = StepBuilderSettings.getInstance();
+        settings.setReformatWholeClass(reformatWholeClass.isSelected());
+        settings.setCompactStepInterfaces(compactStepInterfaces.isSelected());
+        settings.setDirectBuilder(directBuilder.isSelected());
+        settings.setBatchFactory(batchFactory.isSelected());
+        settings.setDerivations(derivations.isSelected());
+    }
+
+    @Override
+    public void reset() {
+        StepBuilderSettings settings = StepBuilderSettings.getInstance();
+        reformatWholeClass.setSelected(settings.isReformatWholeClass());
+        compactStepInterfaces.setSelected(settings.isCompactStepInterfaces());
+        directBuilder.setSelected(settings.isDirectBuilder());
+        batchFactory.setSelected(settings.isBatchFactory());
+        derivations.setSelected(settings.isDerivations());
+    }
+
+    @Override
+    public void disposeUIResources() {
+        reformatWholeClass = null;
+        compactStepInterfaces = null;
+        directBuilder = null;
+        batchFactory = null;
+        derivations = null;
+    }
+}
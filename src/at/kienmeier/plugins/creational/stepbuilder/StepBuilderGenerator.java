@@ -0,0 +1,460 @@
+package at.kienmeier.plugins.creational.stepbuilder;
+
+import at.kienmeier.plugins.creational.stepbuilder.GeneratedAnnotationService.GeneratedAnnotation;
+import at.kienmeier.plugins.creational.stepbuilder.StepBuilderModel.Field;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.psi.*;
+import com.intellij.psi.codeStyle.CodeStyleManager;
+import com.intellij.util.IncorrectOperationException;
+
+import java.util.*;
+
+/**
+ * Generates the Step Builder for a single class in two steps: {@link #plan} analyses the class and renders the
+ * generated code under a read action, which can run on any thread. {@link #apply} performs the PSI modifications and
+ * has to be run inside a write action and command. The generator holds no mutable state, all state of a single
+ * generation lives in its {@link StepBuilderRenderer} and {@link StepBuilderPlan}, so one instance can be shared by
+ * concurrent generations in any number of threads.
+ * <p>
+ * All generated members are rendered into one source fragment which is parsed once and spliced into the class with a
+ * single add operation, so the number of PSI modifications does not grow with the number of fields. All lookups use
+ * indexes built once per class, which keeps the generation linear in the number of fields and members. Only the inserted
+ * and modified ranges are reformatted, unless {@link StepBuilderSettings#isReformatWholeClass()} is set.
+ * <p>
+ * If the class already has a generated Builder (marked with {@code @Generated}), it is regenerated incrementally: only
+ * the generated types and methods which differ from the current fields are replaced, new members are added and the
+ * generated types and methods which aren't generated anymore (removed steps and fields, disabled options) are deleted.
+ * Hand-written methods are never replaced; a generated method is only rendered if no hand-written one with the same
+ * name exists. Only private constructors are removed in this mode, as the generation makes the builder's constructor
+ * private.
+ */
+public class StepBuilderGenerator {
+    private static final String BUILDER = "Builder";
+    private static final String NEW_INSTANCE = "newInstance";
+    private static final String GENERATED = "Generated";
+    private static final PhaseRecorder UNRECORDED = new PhaseRecorder() {
+        @Override
+        public void phaseStarted(GenerationPhase phase) {
+        }
+
+        @Override
+        public void phaseFinished(GenerationPhase phase) {
+        }
+
+        @Override
+        public void generationFinished(StepBuilderModel model, int classLength, int generatedElementCount) {
+        }
+    };
+    private final Project project;
+    private final PsiElementFactory psiElementFactory;
+    private final PhaseRecorder recorder;
+    private final StepBuilderSettings settings;
+
+    public StepBuilderGenerator(Project project) {
+        this(project, StepBuilderStatistics.getInstance());
+    }
+
+    public StepBuilderGenerator(Project project, PhaseRecorder recorder) {
+        this(project, recorder, StepBuilderSettings.getInstance());
+    }
+
+    public StepBuilderGenerator(Project project, PhaseRecorder recorder, StepBuilderSettings settings) {
+        this.project = project;
+        this.psiElementFactory = JavaPsiFacade.getInstance(project).getElementFactory();
+        this.recorder = recorder;
+        this.settings = settings;
+    }
+
+    /**
+     * Classes that can get a Step Builder: no interfaces, annotation types, enums, abstract or synthetic classes, as
+     * the Builder has to instantiate the class.
+     */
+    public static boolean isStepBuilderCandidate(PsiClass psiClass) {
+        return null != psiClass && !(psiClass instanceof PsiSyntheticClass) && !psiClass.isInterface() && !psiClass.isEnum()
+                && !psiClass.hasModifierProperty(PsiModifier.ABSTRACT);
+    }
+
+    /**
+     * Checks for the {@code @Generated} marker of this plugin by the annotation's simple name, without resolving it.
+     */
+    public static boolean isGenerated(PsiModifierListOwner owner) {
+        PsiModifierList modifierList = owner.getModifierList();
+        if (null == modifierList) {
+            return false;
+        }
+        for (PsiAnnotation annotation : modifierList.getAnnotations()) {
+            PsiJavaCodeReferenceElement reference = annotation.getNameReferenceElement();
+            if (null != reference && GENERATED.equals(reference.getReferenceName())) {
+                PsiAnnotationMemberValue value = annotation.findDeclaredAttributeValue("value");
+                if (value instanceof PsiLiteralExpression && StepBuilderAction.PLUGIN_NAME.equals(((PsiLiteralExpression) value).getValue())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the class has a Builder generated by this plugin, which gets regenerated incrementally
+     */
+    public static boolean hasGeneratedBuilder(PsiClass psiClass) {
+        PsiClass builder = psiClass.findInnerClassByName(BUILDER, false);
+        return null != builder && isGenerated(builder);
+    }
+
+    /**
+     * Returns the (cached) model of the class. Has to be run inside a read action.
+     */
+    public StepBuilderModel classify(PsiClass psiClass) {
+        recorder.phaseStarted(GenerationPhase.CLASSIFICATION);
+        try {
+            return StepBuilderModel.getInstance(psiClass);
+        } finally {
+            recorder.phaseFinished(GenerationPhase.CLASSIFICATION);
+        }
+    }
+
+    /**
+     * Plans and applies the generation in one go. Has to be run inside a write action and command.
+     */
+    public void generate(PsiFile psiFile, PsiClass psiClass, StepBuilderModel model) {
+        apply(plan(psiFile, psiClass, model));
+    }
+
+    /**
+     * Computes all modifications without touching the PSI. Has to be run inside a read action.
+     */
+    public StepBuilderPlan plan(PsiFile psiFile, PsiClass psiClass, StepBuilderModel model) {
+        boolean regenerate = hasGeneratedBuilder(psiClass);
+        Set<String> existingMethods = findHandWrittenMethods(psiClass, 0);
+        Set<String> existingOneParameterMethods = findHandWrittenMethods(psiClass, 1);
+        GeneratedAnnotation generatedAnnotation = GeneratedAnnotationService.getInstance(project).getGeneratedAnnotation(psiClass);
+        StepBuilderRenderer renderer = new StepBuilderRenderer(model, generatedAnnotation, settings);
+
+        recorder.phaseStarted(GenerationPhase.CONSTRUCTOR);
+        List<PsiMethod> obsoleteConstructors = new ArrayList<PsiMethod>();
+        for (PsiMethod c : psiClass.getConstructors()) {
+            if (!regenerate || c.getModifierList().hasModifierProperty("private")) {
+                obsoleteConstructors.add(c);
+            }
+        }
+        // find a constructor whose parameter list contains all mandatory fields, all other constructors are removed
+        PsiMethod constructor = findConstructorWithParameters(psiClass, model.getMandatoryFields());
+        if (null == constructor) {
+            renderer.renderPrivateConstructor();
+        } else {
+            obsoleteConstructors.remove(constructor);
+        }
+        recorder.phaseFinished(GenerationPhase.CONSTRUCTOR);
+
+        recorder.phaseStarted(GenerationPhase.GETTERS);
+        renderer.renderGetters(existingMethods, model.getMandatoryFields());
+        renderer.renderGetters(existingMethods, model.getOptionalFields());
+        renderer.renderDerivationMethods(existingMethods, existingOneParameterMethods);
+        recorder.phaseFinished(GenerationPhase.GETTERS);
+
+        recorder.phaseStarted(GenerationPhase.INTERFACES);
+        // let's start with a static method as entry to the builder
+        renderer.renderNewInstanceMethod(existingMethods);
+        renderer.renderBatchFactoryMethod();
+
+        renderer.renderInnerInterfaceClasses();
+        renderer.renderFinalInterfaceClass();
+        recorder.phaseFinished(GenerationPhase.INTERFACES);
+
+        recorder.phaseStarted(GenerationPhase.BUILDER);
+        // the Builder implements all interfaces and holds all mandatory and optional fields
+        renderer.renderBuilderClass();
+        recorder.phaseFinished(GenerationPhase.BUILDER);
+
+        if (regenerate) {
+            recorder.phaseStarted(GenerationPhase.DIFF);
+            try {
+                return planRegeneration(psiFile, psiClass, model, constructor, obsoleteConstructors, renderer);
+            } finally {
+                recorder.phaseFinished(GenerationPhase.DIFF);
+            }
+        }
+        // the import for @Generated is only needed if it is used in the code
+        return new StepBuilderPlan(psiFile, psiClass, model, constructor, obsoleteConstructors, renderer.getText(),
+                renderer.getGeneratedAnnotationClass());
+    }
+
+    /**
+     * Compares the rendered members with the existing generated ones by their name, ignoring whitespace.
+     */
+    private StepBuilderPlan planRegeneration(PsiFile psiFile, PsiClass psiClass, StepBuilderModel model, PsiMethod constructor,
+                                             List<PsiMethod> obsoleteConstructors, StepBuilderRenderer renderer) {
+        Map<String, PsiClass> generatedClasses = new LinkedHashMap<String, PsiClass>();
+        for (PsiClass innerClass : psiClass.getInnerClasses()) {
+            if (isGenerated(innerClass)) {
+                generatedClasses.put(innerClass.getName(), innerClass);
+            }
+        }
+        Map<String, PsiMethod> generatedMethods = new LinkedHashMap<String, PsiMethod>();
+        for (PsiMethod method : psiClass.getMethods()) {
+            if (isGeneratedMethod(method)) {
+                generatedMethods.put(method.getName(), method);
+            }
+        }
+
+        StringBuilder addedMembers = new StringBuilder();
+        Map<PsiMember, String> replacedMembers = new LinkedHashMap<PsiMember, String>();
+        PsiClass fragment = psiElementFactory.createClassFromText(renderer.getText(), psiClass);
+        for (PsiElement child = fragment.getLBrace(); null != child; child = child.getNextSibling()) {
+            if (!(child instanceof PsiMember)) {
+                continue;
+            }
+            PsiMember existing = null;
+            if (child instanceof PsiClass) {
+                existing = generatedClasses.remove(((PsiClass) child).getName());
+            } else if (child instanceof PsiMethod && !((PsiMethod) child).isConstructor()) {
+                // getters are only rendered if missing and never marked, so they can't match a generated method
+                existing = generatedMethods.remove(((PsiMethod) child).getName());
+            }
+            String text = child.getText();
+            if (null == existing) {
+                addedMembers.append(text).append('\n');
+            } else if (!equalsIgnoringWhitespace(existing.getText(), text)) {
+                replacedMembers.put(existing, text);
+            }
+        }
+        // whatever is left over belongs to steps, fields or options which don't exist anymore
+        List<PsiMember> obsoleteMembers = new ArrayList<PsiMember>(generatedClasses.values());
+        obsoleteMembers.addAll(generatedMethods.values());
+        return new StepBuilderPlan(psiFile, psiClass, model, constructor, obsoleteConstructors, addedMembers.toString(), replacedMembers,
+                obsoleteMembers, renderer.getGeneratedAnnotationClass());
+    }
+
+    /**
+     * @return true for the generated factory and derivation methods, which carry the {@code @Generated} marker, and
+     * for a newInstance() of Builders generated before methods have been marked, which only returns a new Builder
+     */
+    private static boolean isGeneratedMethod(PsiMethod method) {
+        if (isGenerated(method)) {
+            return true;
+        }
+        if (!NEW_INSTANCE.equals(method.getName()) || method.getParameterList().getParametersCount() != 0 || null == method.getBody()) {
+            return false;
+        }
+        PsiStatement[] statements = method.getBody().getStatements();
+        if (statements.length != 1 || !(statements[0] instanceof PsiReturnStatement)) {
+            return false;
+        }
+        PsiExpression returnValue = ((PsiReturnStatement) statements[0]).getReturnValue();
+        return null != returnValue && equalsIgnoringWhitespace(returnValue.getText(), "new " + BUILDER + "()");
+    }
+
+    static boolean equalsIgnoringWhitespace(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (true) {
+            while (i < a.length() && Character.isWhitespace(a.charAt(i))) {
+                i++;
+            }
+            while (j < b.length() && Character.isWhitespace(b.charAt(j))) {
+                j++;
+            }
+            if (i == a.length() || j == b.length()) {
+                return i == a.length() && j == b.length();
+            }
+            if (a.charAt(i++) != b.charAt(j++)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Performs the planned modifications. If the file has been modified in the meantime, the class is planned again.
+     */
+    public void apply(StepBuilderPlan plan) {
+        if (!plan.isUpToDate()) {
+            PsiFile psiFile = plan.getFile();
+            PsiClass psiClass = plan.getPsiClass();
+            if (null == psiFile || null == psiClass) {
+                return;
+            }
+            // recorded as a whole, the planning phases only contain the samples of the regular planning
+            recorder.phaseStarted(GenerationPhase.REPLAN);
+            try {
+                plan = new StepBuilderGenerator(project, UNRECORDED, settings).plan(psiFile, psiClass, StepBuilderModel.getInstance(psiClass));
+            } finally {
+                recorder.phaseFinished(GenerationPhase.REPLAN);
+            }
+        }
+        if (!plan.hasChanges()) {
+            return;
+        }
+        PsiFile psiFile = plan.getFile();
+        PsiClass psiClass = plan.getPsiClass();
+        // first and last element of every inserted or modified range that needs to be reformatted
+        List<PsiElement[]> changedRanges = new ArrayList<PsiElement[]>();
+
+        recorder.phaseStarted(GenerationPhase.UPDATE_CONSTRUCTORS);
+        PsiMethod constructor = plan.getConstructor();
+        // make the existing constructor private if it isn't already
+        if (null != constructor && !constructor.getModifierList().hasModifierProperty("private")) {
+            constructor.getModifierList().setModifierProperty("private", true);
+            changedRanges.add(new PsiElement[]{constructor.getModifierList(), constructor.getModifierList()});
+        }
+        for (PsiMethod c : plan.getObsoleteConstructors()) {
+            c.delete();
+        }
+        recorder.phaseFinished(GenerationPhase.UPDATE_CONSTRUCTORS);
+
+        recorder.phaseStarted(GenerationPhase.INSERT);
+        int generatedElementCount = 0;
+        for (PsiMember obsoleteMember : plan.getObsoleteMembers()) {
+            obsoleteMember.delete();
+        }
+        for (int i = 0; i < plan.getReplacedMemberCount(); i++) {
+            PsiMember replacedMember = plan.getReplacedMember(i);
+            if (null != replacedMember) {
+                PsiElement replacement = replacedMember.replace(createMember(psiClass, plan.getReplacement(i)));
+                changedRanges.add(new PsiElement[]{replacement, replacement});
+                generatedElementCount += countMembers(replacement);
+            }
+        }
+        PsiElement[] insertedRange = addMembers(psiClass, plan.getMembers());
+        if (null != insertedRange) {
+            changedRanges.add(insertedRange);
+            generatedElementCount += countMembers(insertedRange);
+        }
+        recorder.phaseFinished(GenerationPhase.INSERT);
+
+        recorder.phaseStarted(GenerationPhase.IMPORT);
+        addImport(psiFile, plan.getGeneratedAnnotationClass());
+        recorder.phaseFinished(GenerationPhase.IMPORT);
+
+        recorder.phaseStarted(GenerationPhase.REFORMAT);
+        reformat(psiFile, psiClass, changedRanges);
+        recorder.phaseFinished(GenerationPhase.REFORMAT);
+
+        recorder.generationFinished(plan.getModel(), psiClass.getTextLength(), generatedElementCount);
+    }
+
+    private static int countMembers(PsiElement[] range) {
+        int count = 0;
+        for (PsiElement element = range[0]; null != element; element = element.getNextSibling()) {
+            count += countMembers(element);
+            if (element == range[1]) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    private static int countMembers(PsiElement element) {
+        if (!(element instanceof PsiMember)) {
+            return 0;
+        }
+        int count = 1;
+        if (element instanceof PsiClass) {
+            PsiClass psiClass = (PsiClass) element;
+            count += psiClass.getFields().length + psiClass.getMethods().length;
+            for (PsiClass innerClass : psiClass.getInnerClasses()) {
+                count += countMembers(innerClass);
+            }
+        }
+        return count;
+    }
+
+    private void reformat(PsiFile psiFile, PsiClass psiClass, List<PsiElement[]> changedRanges) {
+        CodeStyleManager codeStyleManager = CodeStyleManager.getInstance(project);
+        if (settings.isReformatWholeClass()) {
+            codeStyleManager.reformat(psiClass);
+            return;
+        }
+        // the ranges are computed at the very end, as all earlier modifications shift the offsets
+        List<TextRange> textRanges = new ArrayList<TextRange>(changedRanges.size());
+        for (PsiElement[] range : changedRanges) {
+            if (range[0].isValid() && range[1].isValid()) {
+                textRanges.add(new TextRange(range[0].getTextRange().getStartOffset(), range[1].getTextRange().getEndOffset()));
+            }
+        }
+        if (!textRanges.isEmpty()) {
+            codeStyleManager.reformatText(psiFile, textRanges);
+        }
+    }
+
+    /**
+     * Parses the rendered members once and adds them to the class in one go.
+     *
+     * @return the first and the last inserted element, or null if there was nothing to insert
+     */
+    private PsiElement[] addMembers(PsiClass psiClass, CharSequence members) {
+        PsiClass fragment = psiElementFactory.createClassFromText(members.toString(), psiClass);
+        PsiElement lBrace = fragment.getLBrace();
+        PsiElement rBrace = fragment.getRBrace();
+        if (null == lBrace || null == rBrace || lBrace.getNextSibling() == rBrace) {
+            return null;
+        }
+        PsiElement first = lBrace.getNextSibling();
+        PsiElement last = rBrace.getPrevSibling();
+        PsiElement anchor = psiClass.getRBrace();
+        if (null != anchor) {
+            return new PsiElement[]{psiClass.addRangeBefore(first, last, anchor), anchor.getPrevSibling()};
+        }
+        PsiElement firstAdded = psiClass.addRange(first, last);
+        return new PsiElement[]{firstAdded, psiClass.getLastChild()};
+    }
+
+    private PsiMember createMember(PsiClass psiClass, String text) {
+        PsiClass fragment = psiElementFactory.createClassFromText(text, psiClass);
+        for (PsiElement child = fragment.getLBrace(); null != child; child = child.getNextSibling()) {
+            if (child instanceof PsiMember) {
+                return (PsiMember) child;
+            }
+        }
+        throw new IncorrectOperationException("Not a member: " + text);
+    }
+
+    private void addImport(PsiFile psiFile, PsiClass generatedAnnotationClass) {
+        if (null != generatedAnnotationClass && psiFile instanceof PsiImportHolder) {
+            PsiImportHolder importHolder = (PsiImportHolder) psiFile;
+            importHolder.importClass(generatedAnnotationClass);
+        }
+    }
+
+    /**
+     * @return the names of all hand-written methods of the class (not its superclasses) with the given number of
+     * parameters, i.e. the methods a generated getter, factory or derivation method could clash with
+     */
+    private Set<String> findHandWrittenMethods(PsiClass psiClass, int parameterCount) {
+        Set<String> methodNames = new HashSet<String>();
+        for (PsiMethod method : psiClass.getMethods()) {
+            if (!method.isConstructor() && method.getParameterList().getParametersCount() == parameterCount && !isGeneratedMethod(method)) {
+                methodNames.add(method.getName());
+            }
+        }
+        return methodNames;
+    }
+
+    private PsiMethod findConstructorWithParameters(PsiClass psiClass, List<Field> fields) {
+        PsiMethod[] constructors = psiClass.getConstructors();
+        for (PsiMethod constructor : constructors) {
+            PsiParameterList parameterList = constructor.getParameterList();
+            if (fields.size() == parameterList.getParametersCount()) {
+                PsiParameter[] parameters = parameterList.getParameters();
+                boolean parametersEqualFields = true;
+                int i = 0;
+                // compare the names first, they are cheap compared to the canonical text of the types
+                while (i < parameters.length && parametersEqualFields) {
+                    parametersEqualFields = fields.get(i).getName().equals(parameters[i].getName());
+                    i++;
+                }
+                i = 0;
+                while (i < parameters.length && parametersEqualFields) {
+                    parametersEqualFields = fields.get(i).getType().equals(parameters[i].getType().getCanonicalText());
+                    i++;
+                }
+                if (parametersEqualFields) {
+                    // constructor already exists, return it
+                    return constructor;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,208 @@
+package at.kienmeier.plugins.creational.stepbuilder;
+
+import com.intellij.psi.PsiClass;
+import com.intellij.psi.PsiField;
+import com.intellij.psi.PsiModifierList;
+import com.intellij.psi.PsiPrimitiveType;
+import com.intellij.psi.PsiType;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.psi.util.PsiModificationTracker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable description of the Step Builder of a class: which fields are mandatory and optional, their types and the
+ * names of everything that gets generated for them. All generation phases work on this model instead of walking the
+ * class' fields again.
+ */
+public final class StepBuilderModel {
+    public static final String FINAL_STEP = "FinalStep";
+    // the single generic step interface of the compact mode
+    public static final String COMPACT_STEP = "Step";
+    private final String className;
+    private final String classType;
+    private final List<Field> mandatoryFields;
+    private final List<Field> optionalFields;
+
+    private StepBuilderModel(String className, String classType, List<Field> mandatoryFields, List<Field> optionalFields) {
+        this.className = className;
+        this.classType = classType;
+        this.mandatoryFields = Collections.unmodifiableList(mandatoryFields);
+        this.optionalFields = Collections.unmodifiableList(optionalFields);
+    }
+
+    /**
+     * Returns the model of the class, cached until the Java structure of the project changes (the class' fields
+     * include inherited ones, so changes in other files have to invalidate it, too).
+     */
+    public static StepBuilderModel getInstance(final PsiClass psiClass) {
+        return CachedValuesManager.getCachedValue(psiClass, new CachedValueProvider<StepBuilderModel>() {
+            @Override
+            public Result<StepBuilderModel> compute() {
+                return Result.create(create(psiClass), PsiModificationTracker.JAVA_STRUCTURE_MODIFICATION_COUNT);
+            }
+        });
+    }
+
+    /**
+     * Classifies all fields of the class in a single pass: all final fields of the class are mandatory, all non-final
+     * fields are optional. Static fields and final fields with an initializer can't be set by a Builder.
+     */
+    static StepBuilderModel create(PsiClass psiClass) {
+        List<Field> mandatoryFields = new ArrayList<Field>();
+        List<Field> optionalFields = new ArrayList<Field>();
+        for (PsiField psiField : psiClass.getAllFields()) {
+            if (!isBuilderField(psiField)) {
+                continue;
+            }
+            PsiModifierList modifierList = psiField.getModifierList();
+            String name = psiField.getName();
+            PsiType psiType = psiField.getType();
+            String type = psiType.getCanonicalText();
+            // type arguments can't be primitive
+            String boxedType = psiType instanceof PsiPrimitiveType ? ((PsiPrimitiveType) psiType).getBoxedTypeName() : type;
+            if (modifierList.hasModifierProperty("final")) {
+                mandatoryFields.add(new Field(name, type, boxedType, true));
+            } else {
+                optionalFields.add(new Field(name, type, boxedType, false));
+            }
+        }
+        String className = psiClass.getName();
+        String classType = psiClass.getQualifiedName();
+        return new StepBuilderModel(className, null != classType ? classType : className, mandatoryFields, optionalFields);
+    }
+
+    /**
+     * @return true for the fields a Builder sets: instance fields, unless they are final and initialized already
+     */
+    static boolean isBuilderField(PsiField psiField) {
+        PsiModifierList modifierList = psiField.getModifierList();
+        return null != modifierList && !modifierList.hasModifierProperty("static")
+                && !(modifierList.hasModifierProperty("final") && null != psiField.getInitializer());
+    }
+
+    /**
+     * @return the simple name of the class
+     */
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * @return the type returned by the build() methods
+     */
+    public String getClassType() {
+        return classType;
+    }
+
+    public List<Field> getMandatoryFields() {
+        return mandatoryFields;
+    }
+
+    public List<Field> getOptionalFields() {
+        return optionalFields;
+    }
+
+    public boolean isEmpty() {
+        return mandatoryFields.isEmpty() && optionalFields.isEmpty();
+    }
+
+    /**
+     * @return the type returned by newInstance()
+     */
+    public String getFirstStepName() {
+        return mandatoryFields.isEmpty() ? FINAL_STEP : mandatoryFields.get(0).getStepInterfaceName();
+    }
+
+    /**
+     * @return the type returned by the step method of the mandatory field at the given index
+     */
+    public String getNextStepName(int mandatoryFieldIndex) {
+        int next = mandatoryFieldIndex + 1;
+        return next < mandatoryFields.size() ? mandatoryFields.get(next).getStepInterfaceName() : FINAL_STEP;
+    }
+
+    /**
+     * @return the type returned by newInstance() in the compact mode, a chain of generic step interfaces like
+     * {@code Step<String, Step<Integer, FinalStep>>}
+     */
+    public String getCompactFirstStepType() {
+        StringBuilder type = new StringBuilder();
+        for (Field field : mandatoryFields) {
+            type.append(COMPACT_STEP).append('<').append(field.getBoxedType()).append(", ");
+        }
+        type.append(FINAL_STEP);
+        for (int i = 0; i < mandatoryFields.size(); i++) {
+            type.append('>');
+        }
+        return type.toString();
+    }
+
+    static String firstCharToUpperCase(String value) {
+        if (value.isEmpty() || Character.isUpperCase(value.charAt(0))) {
+            return value;
+        }
+        char[] chars = value.toCharArray();
+        chars[0] = Character.toUpperCase(chars[0]);
+        return new String(chars);
+    }
+
+    public static final class Field {
+        private final String name;
+        private final String type;
+        private final String boxedType;
+        private final String getterName;
+        private final String withMethodName;
+        private final String stepInterfaceName;
+
+        Field(String name, String type, String boxedType, boolean mandatory) {
+            String capitalizedName = firstCharToUpperCase(name);
+            this.name = name;
+            this.type = type;
+            this.boxedType = boxedType;
+            this.getterName = "get" + capitalizedName;
+            this.withMethodName = "with" + capitalizedName;
+            // interface name == "MandatoryFieldName" + "Step"
+            this.stepInterfaceName = mandatory ? capitalizedName + "Step" : null;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the canonical text of the field's type
+         */
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * @return the canonical text of the field's type, boxed if it is primitive
+         */
+        public String getBoxedType() {
+            return boxedType;
+        }
+
+        public String getGetterName() {
+            return getterName;
+        }
+
+        /**
+         * @return the name of the method deriving a copy with a different value of the field
+         */
+        public String getWithMethodName() {
+            return withMethodName;
+        }
+
+        /**
+         * @return the name of the step interface, or null for optional fields
+         */
+        public String getStepInterfaceName() {
+            return stepInterfaceName;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package at.kienmeier.plugins.creational.stepbuilder;
+
+import com.intellij.psi.*;
+
+import java.util.*;
+
+/**
+ * Everything a generation is going to change in a class, computed under a read action by
+ * {@link StepBuilderGenerator#plan}. Applying the plan only performs the PSI modifications, so the write action stays
+ * short. A plan is immutable; it is outdated as soon as the class' file has been modified.
+ * <p>
+ * When an existing generated Step Builder is regenerated, the plan only contains the difference: the generated members
+ * to replace or remove and the members to add. A plan for an up to date class has no changes at all.
+ */
+public final class StepBuilderPlan {
+    private final SmartPsiElementPointer<PsiFile> file;
+    private final SmartPsiElementPointer<PsiClass> psiClass;
+    private final StepBuilderModel model;
+    private final long fileModificationStamp;
+    private final SmartPsiElementPointer<PsiMethod> constructor;
+    private final List<SmartPsiElementPointer<PsiMethod>> obsoleteConstructors;
+    private final String members;
+    private final List<SmartPsiElementPointer<PsiMember>> replacedMembers;
+    private final List<String> replacements;
+    private final List<SmartPsiElementPointer<PsiMember>> obsoleteMembers;
+    private final SmartPsiElementPointer<PsiClass> generatedAnnotationClass;
+    private final boolean changes;
+
+    StepBuilderPlan(PsiFile file, PsiClass psiClass, StepBuilderModel model, PsiMethod constructor, List<PsiMethod> obsoleteConstructors,
+                    String members, PsiClass generatedAnnotationClass) {
+        this(file, psiClass, model, constructor, obsoleteConstructors, members, Collections.<PsiMember, String>emptyMap(),
+                Collections.<PsiMember>emptyList(), generatedAnnotationClass);
+    }
+
+    /**
+     * @param replacedMembers the existing generated members which are replaced by the given source text, in the order
+     *                        of the class
+     */
+    StepBuilderPlan(PsiFile file, PsiClass psiClass, StepBuilderModel model, PsiMethod constructor, List<PsiMethod> obsoleteConstructors,
+                    String members, Map<PsiMember, String> replacedMembers, List<PsiMember> obsoleteMembers, PsiClass generatedAnnotationClass) {
+        SmartPointerManager pointerManager = SmartPointerManager.getInstance(file.getProject());
+        this.file = pointerManager.createSmartPsiElementPointer(file);
+        this.psiClass = pointerManager.createSmartPsiElementPointer(psiClass);
+        this.model = model;
+        this.fileModificationStamp = file.getModificationStamp();
+        this.constructor = null != constructor ? pointerManager.createSmartPsiElementPointer(constructor) : null;
+        this.obsoleteConstructors = createPointers(pointerManager, obsoleteConstructors);
+        this.members = members;
+        this.replacedMembers = createPointers(pointerManager, replacedMembers.keySet());
+        this.replacements = Collections.unmodifiableList(new ArrayList<String>(replacedMembers.values()));
+        this.obsoleteMembers = createPointers(pointerManager, obsoleteMembers);
+        this.changes = !members.isEmpty() || !replacedMembers.isEmpty() || !obsoleteMembers.isEmpty() || !obsoleteConstructors.isEmpty()
+                || (null != constructor && !constructor.getModifierList().hasModifierProperty(PsiModifier.PRIVATE));
+        this.generatedAnnotationClass = null != generatedAnnotationClass ? pointerManager.createSmartPsiElementPointer(generatedAnnotationClass) : null;
+    }
+
+    private static <T extends PsiElement> List<SmartPsiElementPointer<T>> createPointers(SmartPointerManager pointerManager, Collection<? extends T> elements) {
+        List<SmartPsiElementPointer<T>> pointers = new ArrayList<SmartPsiElementPointer<T>>(elements.size());
+        for (T element : elements) {
+            pointers.add(pointerManager.createSmartPsiElementPointer(element));
+        }
+        return Collections.unmodifiableList(pointers);
+    }
+
+    private static <T extends PsiElement> List<T> getElements(List<SmartPsiElementPointer<T>> pointers) {
+        List<T> elements = new ArrayList<T>(pointers.size());
+        for (SmartPsiElementPointer<T> pointer : pointers) {
+            T element = pointer.getElement();
+            if (null != element) {
+                elements.add(element);
+            }
+        }
+        return elements;
+    }
+
+    /**
+     * @return false if the file has been modified since the plan has been computed
+     */
+    public boolean isUpToDate() {
+        PsiFile psiFile = getFile();
+        return null != psiFile && null != getPsiClass() && psiFile.getModificationStamp() == fileModificationStamp;
+    }
+
+    public PsiFile getFile() {
+        return file.getElement();
+    }
+
+    public PsiClass getPsiClass() {
+        return psiClass.getElement();
+    }
+
+    public StepBuilderModel getModel() {
+        return model;
+    }
+
+    /**
+     * @return the existing constructor for all mandatory fields, or null if a new one is part of {@link #getMembers()}
+     */
+    public PsiMethod getConstructor() {
+        return null != constructor ? constructor.getElement() : null;
+    }
+
+    /**
+     * @return all other constructors, which get removed
+     */
+    public List<PsiMethod> getObsoleteConstructors() {
+        return getElements(obsoleteConstructors);
+    }
+
+    /**
+     * @return the source text of all members to be added to the class
+     */
+    public String getMembers() {
+        return members;
+    }
+
+    /**
+     * @return the existing generated members which differ from the ones to generate, see {@link #getReplacement(int)}
+     */
+    public int getReplacedMemberCount() {
+        return replacedMembers.size();
+    }
+
+    /**
+     * @return the existing member to replace, or null if it has been removed in the meantime
+     */
+    public PsiMember getReplacedMember(int index) {
+        return replacedMembers.get(index).getElement();
+    }
+
+    /**
+     * @return the source text of the member replacing {@link #getReplacedMember(int)}
+     */
+    public String getReplacement(int index) {
+        return replacements.get(index);
+    }
+
+    /**
+     * @return the existing generated members which are no longer needed, e.g. the interfaces of removed steps
+     */
+    public List<PsiMember> getObsoleteMembers() {
+        return getElements(obsoleteMembers);
+    }
+
+    /**
+     * @return false if the class is up to date and applying the plan wouldn't modify it
+     */
+    public boolean hasChanges() {
+        return changes;
+    }
+
+    /**
+     * @return the class to import for the generated annotations, or null if no import is needed
+     */
+    public PsiClass getGeneratedAnnotationClass() {
+        return null != generatedAnnotationClass ? generatedAnnotationClass.getElement() : null;
+    }
+}
@@ -0,0 +1,457 @@
+package at.kienmeier.plugins.creational.stepbuilder;
+
+import at.kienmeier.plugins.creational.stepbuilder.GeneratedAnnotationService.GeneratedAnnotation;
+import at.kienmeier.plugins.creational.stepbuilder.StepBuilderModel.Field;
+import com.intellij.psi.PsiClass;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Renders the source text of the generated members of one class. A renderer is created for every plan and must not
+ * be shared between threads.
+ * <p>
+ * In the compact mode all mandatory steps share one generic {@code Step<T, N>} interface, so a class gets three
+ * generated types (Step, FinalStep and Builder) instead of one per mandatory field plus two. newInstance() returns the
+ * whole chain of steps, e.g. {@code Step<String, Step<Integer, FinalStep>>}, which keeps the number, order and types of
+ * the mandatory values checked by the compiler; the Builder implements the raw interface and assigns the values in the
+ * order of the steps.
+ * <p>
+ * The direct Builder only holds the mandatory values until the last step, which creates the instance; the optional
+ * values are written straight into it and build() just returns it. Building an object then doesn't copy the optional
+ * fields. build() hands the instance out and clears it, so using the Builder afterwards fails instead of modifying the
+ * returned instance.
+ */
+class StepBuilderRenderer {
+    private static final String FINAL_STEP = StepBuilderModel.FINAL_STEP;
+    private static final String COMPACT_STEP = StepBuilderModel.COMPACT_STEP;
+    private final StringBuilder out = new StringBuilder();
+    private final StepBuilderModel model;
+    private final GeneratedAnnotation generatedAnnotation;
+    private final boolean compactSteps;
+    // the Builder's step counter in the compact mode
+    private final String compactStep;
+    // the Builder's field holding the instance of the direct Builder, null for a copying Builder
+    private final String directInstance;
+    private final boolean batchFactory;
+    private final boolean derivations;
+    private boolean generatedAnnotationUsed;
+
+    /**
+     * @param generatedAnnotation the annotation for generated types, or null if they shouldn't be annotated
+     */
+    StepBuilderRenderer(StepBuilderModel model, GeneratedAnnotation generatedAnnotation, StepBuilderSettings settings) {
+        this.model = model;
+        this.generatedAnnotation = generatedAnnotation;
+        // the settings may change at any time, the whole class is rendered with the same options
+        this.compactSteps = settings.isCompactStepInterfaces() && !model.getMandatoryFields().isEmpty();
+        this.compactStep = compactSteps ? findUnusedFieldName("step") : null;
+        this.directInstance = settings.isDirectBuilder() ? findUnusedFieldName("instance") : null;
+        this.batchFactory = settings.isBatchFactory();
+        this.derivations = settings.isDerivations();
+    }
+
+    /**
+     * @return the source text of all members rendered so far
+     */
+    String getText() {
+        return out.toString();
+    }
+
+    /**
+     * @return the class of the generated annotation if the rendered members use it, so it has to be imported
+     */
+    PsiClass getGeneratedAnnotationClass() {
+        return generatedAnnotationUsed ? generatedAnnotation.getAnnotationClass() : null;
+    }
+
+    void renderGetters(Set<String> existingMethods, List<Field> fields) {
+        for (Field field : fields) {
+            if (!existingMethods.contains(field.getGetterName())) {
+                out.append("public ").append(field.getType()).append(' ').append(field.getGetterName())
+                        .append("() { return ").append(field.getName()).append("; }\n");
+            }
+        }
+    }
+
+    void renderPrivateConstructor() {
+        out.append("private ").append(model.getClassName()).append('(');
+        renderParameters(model.getMandatoryFields());
+        out.append(") {\n");
+        for (Field mandatoryField : model.getMandatoryFields()) {
+            out.append("this.").append(mandatoryField.getName()).append(" = ").append(mandatoryField.getName()).append(";\n");
+        }
+        out.append("}\n");
+    }
+
+    void renderNewInstanceMethod(Set<String> existingMethods) {
+        if (existingMethods.contains("newInstance")) {
+            return;
+        }
+        renderGeneratedAnnotation();
+        if (compactSteps) {
+            // the Builder implements the raw step interface
+            out.append("@SuppressWarnings(\"unchecked\")\n");
+            out.append("public static ").append(model.getCompactFirstStepType()).append(" newInstance() { return (")
+                    .append(COMPACT_STEP).append(") new Builder(); }\n");
+        } else {
+            out.append("public static ").append(model.getFirstStepName()).append(" newInstance() { return new Builder(); }\n");
+        }
+    }
+
+    /**
+     * Renders {@code newInstances(...)}, which creates one instance per index of the given per-field arrays through the
+     * private constructor, without a Builder. The arrays of optional fields may be null, all others must have the same
+     * length. Without mandatory fields the number of instances is passed explicitly.
+     */
+    void renderBatchFactoryMethod() {
+        if (!batchFactory) {
+            return;
+        }
+        String className = model.getClassName();
+        List<Field> mandatoryFields = model.getMandatoryFields();
+        List<Field> optionalFields = model.getOptionalFields();
+        String length = findUnusedFieldName("length");
+        String instances = findUnusedFieldName("instances");
+        String i = findUnusedFieldName("i");
+
+        renderGeneratedAnnotation();
+        out.append("public static ").append(className).append("[] newInstances(");
+        if (mandatoryFields.isEmpty()) {
+            out.append("int ").append(length);
+        }
+        for (int f = 0; f < mandatoryFields.size() + optionalFields.size(); f++) {
+            Field field = f < mandatoryFields.size() ? mandatoryFields.get(f) : optionalFields.get(f - mandatoryFields.size());
+            if (f > 0 || mandatoryFields.isEmpty()) {
+                out.append(", ");
+            }
+            out.append(field.getType()).append("[] ").append(field.getName());
+        }
+        out.append(") {\n");
+
+        // check all lengths up front, so no instance is created for invalid arguments
+        if (!mandatoryFields.isEmpty()) {
+            out.append("int ").append(length).append(" = ").append(mandatoryFields.get(0).getName()).append(".length;\n");
+        }
+        if (mandatoryFields.size() > 1 || !optionalFields.isEmpty()) {
+            out.append("if (");
+            for (int f = 1; f < mandatoryFields.size(); f++) {
+                if (f > 1) {
+                    out.append(" || ");
+                }
+                out.append(mandatoryFields.get(f).getName()).append(".length != ").append(length);
+            }
+            for (int f = 0; f < optionalFields.size(); f++) {
+                if (f > 0 || mandatoryFields.size() > 1) {
+                    out.append(" || ");
+                }
+                String name = optionalFields.get(f).getName();
+                out.append("(null != ").append(name).append(" && ").append(name).append(".length != ").append(length).append(')');
+            }
+            out.append(") {\nthrow new IllegalArgumentException(\"All arrays must have the same length\");\n}\n");
+        }
+
+        out.append(className).append("[] ").append(instances).append(" = new ").append(className).append('[').append(length).append("];\n");
+        out.append("for (int ").append(i).append(" = 0; ").append(i).append(" < ").append(length).append("; ").append(i).append("++) {\n");
+        out.append(instances).append('[').append(i).append("] = ");
+        renderConstructorCall('[' + i + ']');
+        out.append(";\n}\n");
+        // one loop per optional field, skipping the fields without values entirely
+        for (Field field : optionalFields) {
+            String name = field.getName();
+            out.append("if (null != ").append(name).append(") {\n");
+            out.append("for (int ").append(i).append(" = 0; ").append(i).append(" < ").append(length).append("; ").append(i).append("++) {\n");
+            out.append(instances).append('[').append(i).append("].").append(name).append(" = ").append(name).append('[').append(i).append("];\n");
+            out.append("}\n}\n");
+        }
+        out.append("return ").append(instances).append(";\n}\n");
+    }
+
+    /**
+     * Renders {@code toBuilder()}, returning a Builder at its final step which holds the values of this instance, and
+     * one {@code withX(...)} method per field, deriving a copy with one different value through the private constructor
+     * in a single allocation. Fields which already have a hand-written {@code withX(...)} method are skipped.
+     */
+    void renderDerivationMethods(Set<String> existingMethods, Set<String> existingOneParameterMethods) {
+        if (!derivations) {
+            return;
+        }
+        String className = model.getClassName();
+        List<Field> mandatoryFields = model.getMandatoryFields();
+        List<Field> optionalFields = model.getOptionalFields();
+
+        if (!existingMethods.contains("toBuilder")) {
+            String builder = findUnusedFieldName("builder");
+            renderGeneratedAnnotation();
+            out.append("public ").append(FINAL_STEP).append(" toBuilder() {\n");
+            out.append("Builder ").append(builder).append(" = new Builder();\n");
+            for (Field field : mandatoryFields) {
+                out.append(builder).append('.').append(field.getName()).append(" = this.").append(field.getName()).append(";\n");
+            }
+            if (compactSteps) {
+                out.append(builder).append('.').append(compactStep).append(" = ").append(mandatoryFields.size()).append(";\n");
+            }
+            // a direct Builder gets a copy of this instance, the others a copy of its optional values
+            String target = builder;
+            if (null != directInstance) {
+                target = builder + '.' + directInstance;
+                out.append(target).append(" = ");
+                renderCopyConstructorCall(null);
+                out.append(";\n");
+            }
+            for (Field field : optionalFields) {
+                out.append(target).append('.').append(field.getName()).append(" = this.").append(field.getName()).append(";\n");
+            }
+            out.append("return ").append(builder).append(";\n}\n");
+        }
+
+        String copy = findUnusedFieldName("copy");
+        for (int f = 0; f < mandatoryFields.size() + optionalFields.size(); f++) {
+            Field field = f < mandatoryFields.size() ? mandatoryFields.get(f) : optionalFields.get(f - mandatoryFields.size());
+            if (existingOneParameterMethods.contains(field.getWithMethodName())) {
+                continue;
+            }
+            renderGeneratedAnnotation();
+            out.append("public ").append(className).append(' ').append(field.getWithMethodName()).append('(')
+                    .append(field.getType()).append(' ').append(field.getName()).append(") {\n");
+            out.append(className).append(' ').append(copy).append(" = ");
+            renderCopyConstructorCall(field);
+            out.append(";\n");
+            for (Field optionalField : optionalFields) {
+                String name = optionalField.getName();
+                out.append(copy).append('.').append(name).append(" = ").append(optionalField == field ? "" : "this.").append(name).append(";\n");
+            }
+            out.append("return ").append(copy).append(";\n}\n");
+        }
+    }
+
+    void renderInnerInterfaceClasses() {
+        if (compactSteps) {
+            renderGeneratedAnnotation();
+            out.append("public interface ").append(COMPACT_STEP).append("<T, N> {\n");
+            out.append("public N set(T value);\n");
+            out.append("}\n");
+            return;
+        }
+        List<Field> fields = model.getMandatoryFields();
+        for (int i = 0; i < fields.size(); i++) {
+            Field field = fields.get(i);
+            renderGeneratedAnnotation();
+            out.append("public interface ").append(field.getStepInterfaceName()).append(" {\n");
+            out.append("public ").append(model.getNextStepName(i)).append(' ').append(field.getName()).append('(')
+                    .append(field.getType()).append(' ').append(field.getName()).append(");\n");
+            out.append("}\n");
+        }
+    }
+
+    void renderFinalInterfaceClass() {
+        renderGeneratedAnnotation();
+        out.append("public interface ").append(FINAL_STEP).append(" {\n");
+        out.append("public ").append(model.getClassType()).append(" build();\n");
+        for (Field field : model.getOptionalFields()) {
+            out.append("public ").append(FINAL_STEP).append(' ').append(field.getName()).append('(')
+                    .append(field.getType()).append(' ').append(field.getName()).append(");\n");
+        }
+        out.append("}\n");
+    }
+
+    void renderBuilderClass() {
+        renderGeneratedAnnotation();
+        if (compactSteps) {
+            out.append("@SuppressWarnings({\"rawtypes\", \"unchecked\"})\n");
+            out.append("private static final class Builder implements ").append(COMPACT_STEP).append(", ");
+        } else {
+            out.append("private static final class Builder implements ");
+            for (Field field : model.getMandatoryFields()) {
+                out.append(field.getStepInterfaceName()).append(", ");
+            }
+        }
+        out.append(FINAL_STEP).append(" {\n");
+
+        // add all mandatory and optional fields to the builder als private fields
+        renderBuilderFields(model.getMandatoryFields());
+        if (null == directInstance) {
+            renderBuilderFields(model.getOptionalFields());
+        } else {
+            out.append("private ").append(model.getClassName()).append(' ').append(directInstance);
+            if (model.getMandatoryFields().isEmpty()) {
+                // without mandatory fields there is no last step to create the instance
+                out.append(" = ");
+                renderConstructorCall();
+            }
+            out.append(";\n");
+        }
+
+        // create all methods for the mandatory fields of the builder
+        List<Field> mandatoryFields = model.getMandatoryFields();
+        if (compactSteps) {
+            renderBuilderStepMethod();
+        } else {
+            for (int i = 0; i < mandatoryFields.size(); i++) {
+                renderBuilderFieldMethod(mandatoryFields.get(i), model.getNextStepName(i), i == mandatoryFields.size() - 1);
+            }
+        }
+        // create all methods for the optional fields of the builder
+        for (Field field : model.getOptionalFields()) {
+            renderBuilderFieldMethod(field, FINAL_STEP, false);
+        }
+
+        // the FinalStep's interface build() method is a bit more complex...
+        renderBuilderBuildMethod();
+        out.append("}\n");
+    }
+
+    private void renderBuilderFields(List<Field> fields) {
+        for (Field field : fields) {
+            out.append("private ").append(field.getType()).append(' ').append(field.getName()).append(";\n");
+        }
+    }
+
+    /**
+     * @param lastStep true for the method of the last mandatory field, which creates the instance of a direct Builder
+     */
+    private void renderBuilderFieldMethod(Field field, String returnType, boolean lastStep) {
+        String name = field.getName();
+        out.append("public ").append(returnType).append(' ').append(name).append('(')
+                .append(field.getType()).append(' ').append(name).append(") { ");
+        if (null != directInstance && null == field.getStepInterfaceName()) {
+            out.append(directInstance).append('.');
+        } else {
+            out.append("this.");
+        }
+        out.append(name).append(" = ").append(name).append("; ");
+        if (null != directInstance && lastStep) {
+            renderCreateDirectInstance();
+        }
+        out.append("return this; }\n");
+    }
+
+    /**
+     * Calls the constructor of the class with the mandatory values of this instance.
+     *
+     * @param replacedField the field whose value is taken from the parameter of the same name, or null
+     */
+    private void renderCopyConstructorCall(Field replacedField) {
+        out.append("new ").append(model.getClassName()).append('(');
+        List<Field> mandatoryFields = model.getMandatoryFields();
+        for (int i = 0; i < mandatoryFields.size(); i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            Field field = mandatoryFields.get(i);
+            out.append(field == replacedField ? "" : "this.").append(field.getName());
+        }
+        out.append(')');
+    }
+
+    private void renderCreateDirectInstance() {
+        out.append(directInstance).append(" = ");
+        renderConstructorCall();
+        out.append("; ");
+    }
+
+    private void renderConstructorCall() {
+        renderConstructorCall("");
+    }
+
+    /**
+     * Calls the constructor of the class with the mandatory fields' values.
+     *
+     * @param argumentSuffix appended to every field name, e.g. an array index
+     */
+    private void renderConstructorCall(String argumentSuffix) {
+        out.append("new ").append(model.getClassName()).append('(');
+        List<Field> mandatoryFields = model.getMandatoryFields();
+        for (int i = 0; i < mandatoryFields.size(); i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            out.append(mandatoryFields.get(i).getName()).append(argumentSuffix);
+        }
+        out.append(')');
+    }
+
+    /**
+     * The single set() method of the compact mode assigns the mandatory fields one after another. Primitive fields
+     * take their boxed type, so null passes the compiler and is rejected here instead of failing on unboxing.
+     */
+    private void renderBuilderStepMethod() {
+        out.append("private int ").append(compactStep).append(";\n");
+        out.append("public Object set(Object value) {\n");
+        out.append("switch (").append(compactStep).append(") {\n");
+        List<Field> mandatoryFields = model.getMandatoryFields();
+        for (int i = 0; i < mandatoryFields.size(); i++) {
+            Field field = mandatoryFields.get(i);
+            out.append("case ").append(i).append(":\n");
+            if (!field.getBoxedType().equals(field.getType())) {
+                out.append("if (null == value) { throw new IllegalArgumentException(\"").append(field.getName())
+                        .append(" must not be null\"); }\n");
+            }
+            out.append("this.").append(field.getName()).append(" = (").append(field.getBoxedType())
+                    .append(") value;\n");
+            if (null != directInstance && i == mandatoryFields.size() - 1) {
+                renderCreateDirectInstance();
+            }
+            out.append("break;\n");
+        }
+        out.append("}\n");
+        out.append(compactStep).append("++;\n");
+        out.append("return this;\n}\n");
+    }
+
+    private String findUnusedFieldName(String name) {
+        Set<String> fieldNames = new HashSet<String>();
+        for (Field field : model.getMandatoryFields()) {
+            fieldNames.add(field.getName());
+        }
+        for (Field field : model.getOptionalFields()) {
+            fieldNames.add(field.getName());
+        }
+        String unusedName = name;
+        for (int i = 2; fieldNames.contains(unusedName); i++) {
+            unusedName = name + i;
+        }
+        return unusedName;
+    }
+
+    private void renderBuilderBuildMethod() {
+        out.append("public ").append(model.getClassType()).append(" build() {\n");
+        if (null != directInstance) {
+            // the instance has been filled already; the Builder lets go of it, so any further use fails right away
+            // instead of modifying an instance which has been handed out
+            String result = findUnusedFieldName("result");
+            out.append("if (null == ").append(directInstance).append(") {\n");
+            out.append("throw new IllegalStateException(\"build() has already been called\");\n}\n");
+            out.append(model.getClassName()).append(' ').append(result).append(" = ").append(directInstance).append(";\n");
+            out.append(directInstance).append(" = null;\n");
+            out.append("return ").append(result).append(";\n}\n");
+            return;
+        }
+        // first, call the constructor of the class with the mandatory fields' parameters
+        out.append(model.getClassName()).append(" theObject = ");
+        renderConstructorCall();
+        out.append(";\n");
+        for (Field field : model.getOptionalFields()) {
+            out.append("theObject.").append(field.getName()).append(" = ").append(field.getName()).append(";\n");
+        }
+        out.append("return theObject;\n}\n");
+    }
+
+    private void renderParameters(List<Field> fields) {
+        for (int i = 0; i < fields.size(); i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            out.append(fields.get(i).getType()).append(' ').append(fields.get(i).getName());
+        }
+    }
+
+    private void renderGeneratedAnnotation() {
+        // if no @Generated annotation is available for the class' module, the generated code isn't annotated
+        if (null != generatedAnnotation) {
+            out.append(generatedAnnotation.getAnnotation().getText()).append('\n');
+            generatedAnnotationUsed = true;
+        }
+    }
+}
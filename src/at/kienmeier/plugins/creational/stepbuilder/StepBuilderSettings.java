@@ -0,0 +1,90 @@
+package at.kienmeier.plugins.creational.stepbuilder;
+
+import com.intellij.openapi.components.PersistentStateComponent;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.components.State;
+import com.intellij.openapi.components.Storage;
+import com.intellij.util.xmlb.XmlSerializerUtil;
+
+/**
+ * Application wide settings of the Step Builder generation.
+ */
+@State(name = "StepBuilderSettings", storages = {@Storage("stepBuilder.xml")})
+public class StepBuilderSettings implements PersistentStateComponent<StepBuilderSettings> {
+    // public for the XML serializer
+    public boolean reformatWholeClass = false;
+    public boolean compactStepInterfaces = false;
+    public boolean directBuilder = false;
+    public boolean batchFactory = false;
+    public boolean derivations = false;
+
+    public static StepBuilderSettings getInstance() {
+        return ServiceManager.getService(StepBuilderSettings.class);
+    }
+
+    /**
+     * @return true if the whole class should be reformatted after generation, not just the generated code
+     */
+    public boolean isReformatWholeClass() {
+        return reformatWholeClass;
+    }
+
+    public void setReformatWholeClass(boolean reformatWholeClass) {
+        this.reformatWholeClass = reformatWholeClass;
+    }
+
+    /**
+     * @return true if all steps should share one generic step interface instead of one interface per mandatory field
+     */
+    public boolean isCompactStepInterfaces() {
+        return compactStepInterfaces;
+    }
+
+    public void setCompactStepInterfaces(boolean compactStepInterfaces) {
+        this.compactStepInterfaces = compactStepInterfaces;
+    }
+
+    /**
+     * @return true if the Builder should write the optional fields straight into the new instance instead of copying
+     * them in build()
+     */
+    public boolean isDirectBuilder() {
+        return directBuilder;
+    }
+
+    public void setDirectBuilder(boolean directBuilder) {
+        this.directBuilder = directBuilder;
+    }
+
+    /**
+     * @return true if a static newInstances(...) method should be generated, creating instances from per-field arrays
+     */
+    public boolean isBatchFactory() {
+        return batchFactory;
+    }
+
+    public void setBatchFactory(boolean batchFactory) {
+        this.batchFactory = batchFactory;
+    }
+
+    /**
+     * @return true if toBuilder() and a withX(...) method per field should be generated
+     */
+    public boolean isDerivations() {
+        return derivations;
+    }
+
+    public void setDerivations(boolean derivations) {
+        this.derivations = derivations;
+    }
+
+    @Override
+    public StepBuilderSettings getState() {
+        return this;
+    }
+
+    @Override
+    public void loadState(StepBuilderSettings state) {
+        XmlSerializerUtil.copyBean(state, this);
+    }
+}
@@ -0,0 +1,246 @@
+package at.kienmeier.plugins.creational.stepbuilder;
+
+import at.kienmeier.plugins.creational.stepbuilder.StepBuilderModel.Field;
+
+import javax.tools.*;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.*;
+
+/**
+ * Compiles a generated class in memory and measures what it takes a fresh class loader to get to the first built
+ * instance: the number of classes loaded from the generated code and the time from loading the class until build()
+ * has returned. The chain of steps is called reflectively, which costs the same in every mode.
+ * <p>
+ * For the construction throughput two loops are compiled into the class, which build instances through the Builder and
+ * through the constructor, so that no reflection is part of the measured time.
+ */
+final class StepBuilderStartupBenchmark {
+    private static final String BUILDER_LOOP = "builderLoop";
+    private static final String CONSTRUCTOR_LOOP = "constructorLoop";
+    private final Map<String, byte[]> classFiles;
+    private final String className;
+    private final StepBuilderModel model;
+    private final boolean compact;
+
+    private StepBuilderStartupBenchmark(Map<String, byte[]> classFiles, String className, StepBuilderModel model, boolean compact) {
+        this.classFiles = classFiles;
+        this.className = className;
+        this.model = model;
+        this.compact = compact;
+    }
+
+    /**
+     * @param source the source of a top-level class in the default package
+     * @throws IllegalStateException if no compiler is available or the source doesn't compile
+     */
+    static StepBuilderStartupBenchmark compile(String source, StepBuilderModel model, boolean compact) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (null == compiler) {
+            throw new IllegalStateException("No Java compiler available, the IDE has to run on a JDK");
+        }
+        final Map<String, ByteArrayOutputStream> outputs = new HashMap<String, ByteArrayOutputStream>();
+        JavaFileManager fileManager = new ForwardingJavaFileManager<StandardJavaFileManager>(compiler.getStandardFileManager(null, null, null)) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, final String name, JavaFileObject.Kind kind, FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("mem:///" + name.replace('.', '/') + kind.extension), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        ByteArrayOutputStream output = new ByteArrayOutputStream();
+                        outputs.put(name, output);
+                        return output;
+                    }
+                };
+            }
+        };
+        JavaFileObject sourceFile = new SourceFile(model.getClassName(), source);
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        Boolean compiled = compiler.getTask(null, fileManager, diagnostics, Arrays.asList("-nowarn", "-proc:none"), null,
+                Collections.singletonList(sourceFile)).call();
+        if (!Boolean.TRUE.equals(compiled)) {
+            List<Diagnostic<? extends JavaFileObject>> errors = diagnostics.getDiagnostics();
+            throw new IllegalStateException(errors.isEmpty() ? "Compilation failed" : errors.get(0).getMessage(Locale.ROOT));
+        }
+        Map<String, byte[]> classFiles = new HashMap<String, byte[]>();
+        for (Map.Entry<String, ByteArrayOutputStream> output : outputs.entrySet()) {
+            classFiles.put(output.getKey(), output.getValue().toByteArray());
+        }
+        return new StepBuilderStartupBenchmark(classFiles, model.getClassName(), model, compact);
+    }
+
+    /**
+     * Like {@link #compile} for the default mode, with a loop through the Builder and a loop through the constructor
+     * added to the class for {@link #measureConstruction}.
+     */
+    static StepBuilderStartupBenchmark compileWithConstructionLoops(String source, StepBuilderModel model) {
+        int end = source.lastIndexOf('}');
+        return compile(source.substring(0, end) + renderConstructionLoops(model) + source.substring(end), model, false);
+    }
+
+    private static String renderConstructionLoops(StepBuilderModel model) {
+        StringBuilder loops = new StringBuilder();
+        loops.append("static Object ").append(BUILDER_LOOP).append("(int builds) {\n");
+        loops.append("Object last = null;\n");
+        loops.append("for (int i = 0; i < builds; i++) {\n");
+        loops.append("last = newInstance()");
+        for (Field field : model.getMandatoryFields()) {
+            loops.append('.').append(field.getName()).append('(').append(defaultLiteral(field.getType())).append(')');
+        }
+        for (Field field : model.getOptionalFields()) {
+            loops.append('.').append(field.getName()).append('(').append(defaultLiteral(field.getType())).append(')');
+        }
+        loops.append(".build();\n");
+        loops.append("}\n");
+        loops.append("return last;\n");
+        loops.append("}\n");
+
+        // the plain way: constructor for the mandatory values, assignments for the optional ones
+        String className = model.getClassName();
+        loops.append("static Object ").append(CONSTRUCTOR_LOOP).append("(int builds) {\n");
+        loops.append("Object last = null;\n");
+        loops.append("for (int i = 0; i < builds; i++) {\n");
+        loops.append(className).append(" instance = new ").append(className).append('(');
+        List<Field> mandatoryFields = model.getMandatoryFields();
+        for (int i = 0; i < mandatoryFields.size(); i++) {
+            loops.append(i > 0 ? ", " : "").append(defaultLiteral(mandatoryFields.get(i).getType()));
+        }
+        loops.append(");\n");
+        for (Field field : model.getOptionalFields()) {
+            loops.append("instance.").append(field.getName()).append(" = ").append(defaultLiteral(field.getType())).append(";\n");
+        }
+        loops.append("last = instance;\n");
+        loops.append("}\n");
+        loops.append("return last;\n");
+        loops.append("}\n");
+        return loops.toString();
+    }
+
+    /**
+     * Runs both loops in a new class loader, each once for the JIT and once measured.
+     *
+     * @return the nanoseconds per instance built through the Builder and through the constructor
+     */
+    double[] measureConstruction(int builds) throws Exception {
+        Class<?> theClass = Class.forName(className, true, new GeneratedClassLoader(classFiles));
+        return new double[]{timeLoop(theClass.getDeclaredMethod(BUILDER_LOOP, int.class), builds),
+                timeLoop(theClass.getDeclaredMethod(CONSTRUCTOR_LOOP, int.class), builds)};
+    }
+
+    private static double timeLoop(Method loop, int builds) throws Exception {
+        loop.setAccessible(true);
+        loop.invoke(null, builds);
+        long start = System.nanoTime();
+        loop.invoke(null, builds);
+        return (double) (System.nanoTime() - start) / builds;
+    }
+
+    /**
+     * Loads the class in a new class loader and builds one instance.
+     *
+     * @return the number of generated classes which have been loaded and the nanoseconds until build() has returned
+     */
+    long[] buildFirstInstance() throws Exception {
+        long start = System.nanoTime();
+        GeneratedClassLoader loader = new GeneratedClassLoader(classFiles);
+        Class<?> theClass = Class.forName(className, true, loader);
+        Object step = invoke(theClass, null, "newInstance");
+        for (Field field : model.getMandatoryFields()) {
+            step = invoke(step.getClass(), step, compact ? "set" : field.getName(), defaultValue(field.getType()));
+        }
+        invoke(step.getClass(), step, "build");
+        long nanos = System.nanoTime() - start;
+        return new long[]{loader.loadedClasses, nanos};
+    }
+
+    private static Object invoke(Class<?> type, Object target, String name, Object... arguments) throws Exception {
+        for (Method method : type.getMethods()) {
+            if (method.getName().equals(name) && method.getParameterTypes().length == arguments.length) {
+                // the Builder is a private class
+                method.setAccessible(true);
+                return method.invoke(target, arguments);
+            }
+        }
+        throw new NoSuchMethodException(type.getName() + "." + name);
+    }
+
+    private static Object defaultValue(String type) {
+        if ("int".equals(type)) {
+            return 0;
+        } else if ("long".equals(type)) {
+            return 0L;
+        } else if ("boolean".equals(type)) {
+            return false;
+        } else if ("double".equals(type)) {
+            return 0.0;
+        } else if ("float".equals(type)) {
+            return 0.0f;
+        } else if ("short".equals(type)) {
+            return (short) 0;
+        } else if ("byte".equals(type)) {
+            return (byte) 0;
+        } else if ("char".equals(type)) {
+            return '\0';
+        }
+        return null;
+    }
+
+    private static String defaultLiteral(String type) {
+        if ("int".equals(type)) {
+            return "0";
+        } else if ("long".equals(type)) {
+            return "0L";
+        } else if ("boolean".equals(type)) {
+            return "false";
+        } else if ("double".equals(type)) {
+            return "0.0";
+        } else if ("float".equals(type)) {
+            return "0.0f";
+        } else if ("short".equals(type)) {
+            return "(short) 0";
+        } else if ("byte".equals(type)) {
+            return "(byte) 0";
+        } else if ("char".equals(type)) {
+            return "'\\0'";
+        }
+        return "null";
+    }
+
+    private static class SourceFile extends SimpleJavaFileObject {
+        private final String source;
+
+        SourceFile(String className, String source) {
+            super(URI.create("string:///" + className + Kind.SOURCE.extension), Kind.SOURCE);
+            this.source = source;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return source;
+        }
+    }
+
+    /**
+     * Defines the compiled classes on demand and counts them; everything else comes from the bootstrap class loader.
+     */
+    private static class GeneratedClassLoader extends ClassLoader {
+        private final Map<String, byte[]> classFiles;
+        private int loadedClasses;
+
+        GeneratedClassLoader(Map<String, byte[]> classFiles) {
+            super(null);
+            this.classFiles = classFiles;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] classFile = classFiles.get(name);
+            if (null == classFile) {
+                throw new ClassNotFoundException(name);
+            }
+            loadedClasses++;
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+    }
+}
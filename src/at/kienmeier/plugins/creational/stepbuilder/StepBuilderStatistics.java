@@ -0,0 +1,118 @@
+package at.kienmeier.plugins.creational.stepbuilder;
+
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Collects the duration of every {@link GenerationPhase} of all generations since the IDE has been started and
+ * aggregates them to count, p50, p95 and max per phase. The percentiles are computed over the most recent
+ * {@link #WINDOW_SIZE} samples of a phase. Thread-safe, as planning and applying happen on different threads.
+ */
+public class StepBuilderStatistics implements PhaseRecorder {
+    private static final Logger LOG = Logger.getInstance(StepBuilderStatistics.class);
+    static final int WINDOW_SIZE = 1000;
+
+    private final Samples[] phaseSamples = new Samples[GenerationPhase.values().length];
+    private final Samples classSizes = new Samples();
+    private final Samples generatedElements = new Samples();
+    private final ThreadLocal<long[]> phaseStarts = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[GenerationPhase.values().length];
+        }
+    };
+
+    public StepBuilderStatistics() {
+        for (int i = 0; i < phaseSamples.length; i++) {
+            phaseSamples[i] = new Samples();
+        }
+    }
+
+    public static StepBuilderStatistics getInstance() {
+        return ServiceManager.getService(StepBuilderStatistics.class);
+    }
+
+    @Override
+    public void phaseStarted(GenerationPhase phase) {
+        phaseStarts.get()[phase.ordinal()] = System.nanoTime();
+    }
+
+    @Override
+    public void phaseFinished(GenerationPhase phase) {
+        long nanos = System.nanoTime() - phaseStarts.get()[phase.ordinal()];
+        phaseSamples[phase.ordinal()].add(nanos);
+    }
+
+    @Override
+    public void generationFinished(StepBuilderModel model, int classLength, int generatedElementCount) {
+        int fieldCount = model.getMandatoryFields().size() + model.getOptionalFields().size();
+        classSizes.add(fieldCount);
+        generatedElements.add(generatedElementCount);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format(Locale.ROOT, "Generated Step Builder for %s: %d fields, %d characters, %d generated elements",
+                    model.getClassType(), fieldCount, classLength, generatedElementCount));
+        }
+    }
+
+    /**
+     * @return a plain text table of all phases, which is also written to the IDE log
+     */
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "%-16s %8s %10s %10s %10s%n", "phase", "count", "p50 [ms]", "p95 [ms]", "max [ms]"));
+        for (GenerationPhase phase : GenerationPhase.values()) {
+            long[] snapshot = phaseSamples[phase.ordinal()].snapshot();
+            long count = phaseSamples[phase.ordinal()].count();
+            report.append(String.format(Locale.ROOT, "%-16s %8d %10.2f %10.2f %10.2f%n", phase.getId(), count,
+                    percentile(snapshot, 50) / 1e6, percentile(snapshot, 95) / 1e6, max(snapshot) / 1e6));
+        }
+        long[] sizes = classSizes.snapshot();
+        long[] elements = generatedElements.snapshot();
+        report.append(String.format(Locale.ROOT, "%nclasses: %d, fields per class p50/max: %d/%d, generated elements p50/max: %d/%d%n",
+                classSizes.count(), percentile(sizes, 50), max(sizes), percentile(elements, 50), max(elements)));
+        String text = report.toString();
+        LOG.info("Step Builder generation statistics:\n" + text);
+        return text;
+    }
+
+    private static long percentile(long[] sortedValues, int percentile) {
+        if (sortedValues.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sortedValues.length) - 1;
+        return sortedValues[Math.max(0, index)];
+    }
+
+    private static long max(long[] sortedValues) {
+        return sortedValues.length == 0 ? 0 : sortedValues[sortedValues.length - 1];
+    }
+
+    /**
+     * Ring buffer of the most recent samples.
+     */
+    private static class Samples {
+        private final long[] values = new long[WINDOW_SIZE];
+        private long count;
+
+        synchronized void add(long value) {
+            values[(int) (count % WINDOW_SIZE)] = value;
+            count++;
+        }
+
+        synchronized long count() {
+            return count;
+        }
+
+        /**
+         * @return the samples in the window, sorted ascending
+         */
+        synchronized long[] snapshot() {
+            long[] snapshot = Arrays.copyOf(values, (int) Math.min(count, WINDOW_SIZE));
+            Arrays.sort(snapshot);
+            return snapshot;
+        }
+    }
+}
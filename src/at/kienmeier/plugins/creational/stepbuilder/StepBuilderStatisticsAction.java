@@ -0,0 +1,18 @@
+package at.kienmeier.plugins.creational.stepbuilder;
+
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.actionSystem.DataKeys;
+import com.intellij.openapi.ui.Messages;
+
+/**
+ * Shows the aggregated {@link StepBuilderStatistics} and writes them to the IDE log, so they can be attached to
+ * performance reports.
+ */
+public class StepBuilderStatisticsAction extends AnAction {
+
+    public void actionPerformed(AnActionEvent e) {
+        String report = StepBuilderStatistics.getInstance().getReport();
+        Messages.showInfoMessage(DataKeys.PROJECT.getData(e.getDataContext()), report, "Step Builder Generation Statistics");
+    }
+}